@@ -0,0 +1,278 @@
+package org.javacs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * BazelDeps finds the jars and source jars that a bazel workspace depends on, by running `bazel query`, which can take
+ * minutes in a large workspace. The results are saved in DiskCache.workspace(...), along with a digest of the
+ * WORKSPACE, BUILD and .bzl files. When those files change, we keep serving the saved results while the queries run
+ * again in the background, and tell the listener when the new results are ready.
+ */
+class BazelDeps {
+    private static final int MAGIC = 0x4a42415a, VERSION = 1;
+
+    /** Listener hears about queries that run in the background */
+    interface Listener {
+        void started(String message);
+
+        void finished();
+
+        /** New results have been saved, so anything that depends on the class path should be recreated */
+        void updated();
+    }
+
+    private static final Listener IGNORE =
+            new Listener() {
+                @Override
+                public void started(String message) {}
+
+                @Override
+                public void finished() {}
+
+                @Override
+                public void updated() {}
+            };
+
+    private static volatile Listener listener = IGNORE;
+
+    static void setListener(Listener newListener) {
+        listener = newListener;
+    }
+
+    /** Runs queries in the background, one workspace at a time */
+    private static final ExecutorService background =
+            Executors.newSingleThreadExecutor(
+                    task -> {
+                        var thread = new Thread(task, "bazel-query");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+    /** The digest that is currently being queried in the background, so we don't start the same query twice */
+    private static String refreshing;
+    /** querying[cacheFile] is the first query of a workspace with no saved results, which other callers wait for */
+    private static final Map<Path, CompletableFuture<BazelDeps>> querying = new HashMap<>();
+
+    final Set<Path> jars, srcJars;
+    final String digest;
+
+    BazelDeps(String digest, Set<Path> jars, Set<Path> srcJars) {
+        this.digest = digest;
+        this.jars = jars;
+        this.srcJars = srcJars;
+    }
+
+    /**
+     * The dependencies of the bazel workspace in `workspaceRoot`, which may be out-of-date while they are refreshed.
+     * Each call walks the workspace to compute the digest, so callers that need both jars and srcJars should call this
+     * once. The lock is only held to check the saved results, not while bazel runs.
+     */
+    static BazelDeps of(Path workspaceRoot) {
+        var cacheFile = DiskCache.workspace(Set.of(workspaceRoot)).resolve("bazel.deps");
+        var digest = digest(workspaceRoot);
+        CompletableFuture<BazelDeps> pending, mine = new CompletableFuture<>();
+        synchronized (BazelDeps.class) {
+            var saved = load(cacheFile);
+            if (saved != null && saved.digest.equals(digest)) {
+                LOG.info(String.format("Loaded %d bazel dependencies from %s", saved.jars.size(), cacheFile));
+                return saved;
+            }
+            // If we have an older result, use it until the new one is ready
+            if (saved != null) {
+                if (!digest.equals(refreshing)) {
+                    refreshing = digest;
+                    LOG.info("Build files have changed, re-running bazel query in the background");
+                    background.execute(() -> refresh(workspaceRoot, digest, cacheFile));
+                }
+                return saved;
+            }
+            pending = querying.putIfAbsent(cacheFile, mine);
+        }
+        // Someone else is already running the first query of this workspace
+        if (pending != null) return pending.join();
+        try {
+            var result = query(workspaceRoot, digest);
+            if (result == null) {
+                result = new BazelDeps(digest, Set.of(), Set.of());
+            } else {
+                synchronized (BazelDeps.class) {
+                    save(result, cacheFile);
+                }
+            }
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (BazelDeps.class) {
+                querying.remove(cacheFile);
+            }
+        }
+    }
+
+    private static void refresh(Path workspaceRoot, String digest, Path cacheFile) {
+        var l = listener;
+        l.started("Running bazel query");
+        try {
+            var result = query(workspaceRoot, digest);
+            synchronized (BazelDeps.class) {
+                if (result != null) save(result, cacheFile);
+                refreshing = null;
+            }
+            if (result != null) l.updated();
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to refresh bazel dependencies", e);
+            synchronized (BazelDeps.class) {
+                refreshing = null;
+            }
+        } finally {
+            l.finished();
+        }
+    }
+
+    /**
+     * Run the jars and srcjar queries at the same time, or return null if either fails. The bazel server runs one
+     * command at a time, but the second query waits in the server instead of behind the first one's process.
+     */
+    private static BazelDeps query(Path workspaceRoot, String digest) {
+        var started = Instant.now();
+        var jars = CompletableFuture.supplyAsync(() -> InferConfig.bazelQuery(workspaceRoot, "jars"));
+        var srcJars = CompletableFuture.supplyAsync(() -> InferConfig.bazelQuery(workspaceRoot, "srcjar"));
+        if (jars.join().isEmpty() || srcJars.join().isEmpty()) return null;
+        var result = new BazelDeps(digest, jars.join().get(), srcJars.join().get());
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("...found %d bazel dependencies in %d ms", result.jars.size(), elapsed));
+        return result;
+    }
+
+    /**
+     * A digest of the path, size and modified time of every file that can change the dependency graph. We don't look
+     * inside bazel-* directories, which are symlinks to the output of the build, or hidden directories like .git.
+     */
+    static String digest(Path workspaceRoot) {
+        var files = new ArrayList<String>();
+        try {
+            Files.walkFileTree(
+                    workspaceRoot,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                            var name = dir.getFileName().toString();
+                            if (!dir.equals(workspaceRoot) && (name.startsWith(".") || name.startsWith("bazel-"))) {
+                                return FileVisitResult.SKIP_SUBTREE;
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            if (isBuildFile(file.getFileName().toString())) {
+                                files.add(
+                                        String.format(
+                                                "%s:%d:%d",
+                                                workspaceRoot.relativize(file),
+                                                attrs.size(),
+                                                attrs.lastModifiedTime().toMillis()));
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Collections.sort(files);
+        return DiskCache.hash(String.join("\n", files));
+    }
+
+    static boolean isBuildFile(String name) {
+        switch (name) {
+            case "WORKSPACE":
+            case "WORKSPACE.bazel":
+            case "MODULE.bazel":
+            case "BUILD":
+            case "BUILD.bazel":
+                return true;
+            default:
+                return name.endsWith(".bzl");
+        }
+    }
+
+    static BazelDeps load(Path cacheFile) {
+        if (!Files.exists(cacheFile)) return null;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            var digest = in.readUTF();
+            var jars = readPaths(in);
+            var srcJars = readPaths(in);
+            return new BazelDeps(digest, jars, srcJars);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to load bazel dependencies from " + cacheFile, e);
+            return null;
+        }
+    }
+
+    static void save(BazelDeps deps, Path cacheFile) {
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            var tmp = Files.createTempFile(cacheFile.getParent(), "bazel", ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(deps.digest);
+                writePaths(out, deps.jars);
+                writePaths(out, deps.srcJars);
+            }
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to save bazel dependencies to " + cacheFile, e);
+        }
+    }
+
+    private static Set<Path> readPaths(DataInputStream in) throws IOException {
+        var paths = new LinkedHashSet<Path>();
+        var n = in.readInt();
+        for (var i = 0; i < n; i++) {
+            paths.add(Paths.get(in.readUTF()));
+        }
+        return paths;
+    }
+
+    private static void writePaths(DataOutputStream out, Set<Path> paths) throws IOException {
+        out.writeInt(paths.size());
+        for (var p : paths) {
+            out.writeUTF(p.toString());
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -1,13 +1,38 @@
 package org.javacs;
 
 import java.nio.file.Path;
-import java.time.Instant;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
-/** Cache maps a file + an arbitrary key to a value. When the file is modified, the mapping expires. */
+/**
+ * Cache maps a file + an arbitrary key to a value. When the file is modified, all mappings for that file expire. The
+ * cache holds at most maxSize mappings, and evicts the least-recently-used mapping when it is full.
+ */
 class Cache<K, V> {
+    /** By default, hold enough mappings for every file in a large workspace */
+    static final int DEFAULT_SIZE = 10_000;
+
+    /**
+     * generations[file] counts the number of times file has changed. Each mapping remembers the generation of its file
+     * when it was loaded, so invalidating every mapping for a file, in every cache, is a single increment.
+     */
+    private static final Map<Path, Integer> generations = new ConcurrentHashMap<>();
+
+    /** Expire all mappings for `file`, called by FileStore whenever file changes */
+    static void invalidate(Path file) {
+        generations.merge(file, 1, Integer::sum);
+    }
+
+    /**
+     * The number of times `file` has changed. Read it before reading `file` to compute a value, and pass it to load, so
+     * a value computed from a version of `file` that changed in the meantime is never cached.
+     */
+    static int generation(Path file) {
+        return generations.getOrDefault(file, 0);
+    }
+
     private static class Key<K> {
         final Path file;
         final K key;
@@ -32,43 +57,82 @@ class Cache<K, V> {
 
     private class Value {
         final V value;
-        final Instant created = Instant.now();
+        final int generation;
 
-        Value(V value) {
+        Value(V value, int generation) {
             this.value = value;
+            this.generation = generation;
         }
     }
 
-    private final Map<Key, Value> map = new HashMap<>();
+    private final int maxSize;
+    private final Map<Key<K>, Value> map;
+    private long hits, misses, evictions;
 
-    boolean has(Path file, K k) {
-        return !needs(file, k);
+    Cache() {
+        this(DEFAULT_SIZE);
     }
 
-    boolean needs(Path file, K k) {
-        // If key is not in map, it needs to be loaded
-        var key = new Key<K>(file, k);
-        if (!map.containsKey(key)) return true;
+    Cache(int maxSize) {
+        this.maxSize = maxSize;
+        this.map =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Key<K>, Value> eldest) {
+                        if (size() <= Cache.this.maxSize) return false;
+                        evictions++;
+                        return true;
+                    }
+                };
+    }
 
-        // If key was loaded before file was last modified, it needs to be reloaded
+    /** Look up the mapping for `file` + `k`, or null if there is none or `file` has changed since it was loaded */
+    synchronized V get(Path file, K k) {
+        var key = new Key<K>(file, k);
         var value = map.get(key);
-        var modified = FileStore.modified(file);
-        // TODO remove all keys associated with file when file changes
-        return value.created.isBefore(modified);
+        if (value == null) {
+            misses++;
+            return null;
+        }
+        if (value.generation != generation(file)) {
+            map.remove(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        return value.value;
     }
 
-    void load(Path file, K k, V v) {
-        // TODO limit total size of cache
+    /**
+     * Map `file` + `k` to `v`, which was computed from `file` as of `generation`. If `file` has changed since then, `v`
+     * is out of date, so it's dropped.
+     */
+    synchronized void load(Path file, K k, int generation, V v) {
+        if (generation != generation(file)) return;
         var key = new Key<K>(file, k);
-        var value = new Value(v);
+        var value = new Value(v, generation);
         map.put(key, value);
     }
 
-    V get(Path file, K k) {
-        var key = new Key<K>(file, k);
-        if (!map.containsKey(key)) {
-            throw new IllegalArgumentException(k + " is not in map " + map);
-        }
-        return map.get(key).value;
+    synchronized int size() {
+        return map.size();
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                "Cache(size=%d/%d, hits=%d, misses=%d, evictions=%d)", map.size(), maxSize, hits, misses, evictions);
     }
 }
@@ -0,0 +1,240 @@
+package org.javacs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * ClassIndex is a sorted, read-only set of class names, stored in a compact format that can be memory-mapped from a
+ * file in DiskCache.root(). The JDK is indexed once per JDK, and each jar once per (path, size, modified time), so
+ * restarting the server or changing the class path only re-scans jars that have changed.
+ */
+class ClassIndex extends AbstractSet<String> {
+    private static final int MAGIC = 0x4a434958, VERSION = 1, HEADER = 12;
+
+    /**
+     * buffer holds MAGIC, VERSION, the number of names, the offset of each name plus the end of the last name, and then
+     * the names themselves in UTF-8.
+     */
+    private final ByteBuffer buffer;
+
+    private final int count, names;
+
+    private ClassIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        this.names = HEADER + 4 * (count + 1);
+    }
+
+    static ClassIndex of(Collection<String> classNames) {
+        var sorted = new ArrayList<byte[]>();
+        var total = 0;
+        for (var name : new TreeSet<>(classNames)) {
+            var bytes = name.getBytes(StandardCharsets.UTF_8);
+            sorted.add(bytes);
+            total += bytes.length;
+        }
+        var buffer = ByteBuffer.allocate(HEADER + 4 * (sorted.size() + 1) + total);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(sorted.size());
+        var offset = 0;
+        for (var bytes : sorted) {
+            buffer.putInt(offset);
+            offset += bytes.length;
+        }
+        buffer.putInt(offset);
+        for (var bytes : sorted) {
+            buffer.put(bytes);
+        }
+        return new ClassIndex(buffer);
+    }
+
+    /** The `i`th name, in sorted order */
+    String get(int i) {
+        // Use absolute gets, so many threads can read the same buffer
+        var start = names + buffer.getInt(HEADER + 4 * i);
+        var end = names + buffer.getInt(HEADER + 4 * (i + 1));
+        var bytes = new byte[end - start];
+        for (var j = 0; j < bytes.length; j++) {
+            bytes[j] = buffer.get(start + j);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) return false;
+        var name = (String) o;
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            var mid = (low + high) >>> 1;
+            var compare = get(mid).compareTo(name);
+            if (compare < 0) low = mid + 1;
+            else if (compare > 0) high = mid - 1;
+            else return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+
+    /** Top-level classes in the JDK we are running on */
+    static ClassIndex jdk() {
+        var key = System.getProperty("java.home") + File.pathSeparator + System.getProperty("java.version");
+        var file = directory().resolve("jdk-" + DiskCache.hash(key) + ".idx");
+        return readOrScan(file, Classes::jdkTopLevelClasses);
+    }
+
+    /** Top-level classes in every jar and directory on `classPath` */
+    static ClassIndex classPath(Set<Path> classPath) {
+        LOG.info(String.format("Indexing top-level classes in %d classpath locations", classPath.size()));
+        var started = Instant.now();
+        var jars = new ArrayList<Path>();
+        var directories = new ArrayList<Path>();
+        for (var entry : classPath) {
+            if (Files.isRegularFile(entry)) jars.add(entry);
+            else if (Files.isDirectory(entry)) directories.add(entry);
+        }
+        // Directories change too often to be worth saving, but if the class path is all jars, save the whole thing
+        Path combinedFile = null;
+        if (directories.isEmpty()) {
+            var fingerprints = jars.stream().map(ClassIndex::fingerprint).sorted().collect(Collectors.toList());
+            combinedFile = directory().resolve("classpath-" + DiskCache.hash(String.join("\n", fingerprints)) + ".idx");
+            var combined = read(combinedFile);
+            if (combined != null) {
+                LOG.info(String.format("...loaded %d classes from %s", combined.size(), combinedFile));
+                return combined;
+            }
+        }
+        // Index each entry, in parallel, reusing the saved index of any jar that hasn't changed
+        var entries = new ArrayList<Path>();
+        entries.addAll(jars);
+        entries.addAll(directories);
+        var parts = entries.parallelStream().map(ClassIndex::entry).collect(Collectors.toList());
+        var classes = new HashSet<String>();
+        for (var part : parts) {
+            classes.addAll(part);
+        }
+        var index = of(classes);
+        if (combinedFile != null) {
+            index = save(index, combinedFile);
+        }
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("...found %d classes in classpath in %d ms", index.size(), elapsed));
+        return index;
+    }
+
+    private static Set<String> entry(Path entry) {
+        Supplier<Set<String>> scan = () -> Classes.scanTopLevelClasses(Set.of(entry));
+        if (Files.isDirectory(entry)) return scan.get();
+        var file = directory().resolve("jar-" + DiskCache.hash(fingerprint(entry)) + ".idx");
+        return readOrScan(file, scan);
+    }
+
+    /** A jar is re-scanned if it moves, or if its size or modified time change */
+    private static String fingerprint(Path jar) {
+        try {
+            var attributes = Files.readAttributes(jar, BasicFileAttributes.class);
+            return String.format("%s:%d:%d", jar, attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Path directory() {
+        return DiskCache.root().resolve("classes");
+    }
+
+    private static ClassIndex readOrScan(Path file, Supplier<Set<String>> scan) {
+        var index = read(file);
+        if (index != null) return index;
+        return save(of(scan.get()), file);
+    }
+
+    /** Save `index` to `file`, and return a memory-mapped copy that lives outside the heap */
+    private static ClassIndex save(ClassIndex index, Path file) {
+        try {
+            Files.createDirectories(file.getParent());
+            var tmp = Files.createTempFile(file.getParent(), "classes", ".tmp");
+            try (var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                var bytes = index.buffer.duplicate();
+                bytes.clear();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to save class index to " + file, e);
+            return index;
+        }
+        var mapped = read(file);
+        if (mapped == null) return index;
+        return mapped;
+    }
+
+    /** Map `file` into memory, or return null if it doesn't exist or isn't a valid index */
+    private static ClassIndex read(Path file) {
+        if (!Files.exists(file)) return null;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER + 4 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                LOG.info("...ignoring class index in old format " + file);
+                return null;
+            }
+            var count = buffer.getInt(8);
+            var names = HEADER + 4L * (count + 1);
+            if (count < 0 || names > buffer.limit() || names + buffer.getInt((int) names - 4) != buffer.limit()) {
+                LOG.warning("...ignoring truncated class index " + file);
+                return null;
+            }
+            return new ClassIndex(buffer);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to read class index from " + file, e);
+            return null;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -144,6 +144,14 @@ class Classes {
     static Set<String> classPathTopLevelClasses(Set<Path> classPath) {
         LOG.info(String.format("Searching for top-level classes in %d classpath locations", classPath.size()));
 
+        var classes = scanTopLevelClasses(classPath);
+
+        LOG.info(String.format("Found %d classes in classpath", classes.size()));
+
+        return classes;
+    }
+
+    static Set<String> scanTopLevelClasses(Set<Path> classPath) {
         Function<Path, URL> toUrl =
                 p -> {
                     try {
@@ -160,11 +168,7 @@ class Classes {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        var classes = scanner.getTopLevelClasses().stream().map(info -> info.getName()).collect(Collectors.toSet());
-
-        LOG.info(String.format("Found %d classes in classpath", classes.size()));
-
-        return classes;
+        return scanner.getTopLevelClasses().stream().map(info -> info.getName()).collect(Collectors.toSet());
     }
 
     private static final Logger LOG = Logger.getLogger("main");
@@ -5,6 +5,7 @@ import com.sun.source.doctree.DocTree;
 import com.sun.source.doctree.ParamTree;
 import com.sun.source.tree.*;
 import com.sun.source.util.*;
+import com.sun.tools.javac.api.JavacTaskImpl;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
@@ -27,15 +28,32 @@ class CompileBatch implements AutoCloseable {
     static final int MAX_COMPLETION_ITEMS = 50;
 
     private final JavaCompilerService parent;
+    private final JavaCompilerService.PooledCompiler compiler;
     private final ReusableCompiler.Borrow borrow;
+    /** Diagnostics from this batch */
+    private final List<javax.tools.Diagnostic<? extends JavaFileObject>> diags = new ArrayList<>();
     private final Trees trees;
     private final Elements elements;
     private final Types types;
     private final List<CompilationUnitTree> roots;
+    /** Errors in each file, and how many diagnostics javac had reported in that file when we converted them */
+    private final Map<URI, PublishDiagnosticsParams> reports = new HashMap<>();
+    private final Map<URI, Integer> reportedDiags = new HashMap<>();
+    /** Line indexes of files with diagnostics, so each file is read and scanned at most once per batch */
+    private final Map<URI, Rope> lineIndexes = new HashMap<>();
 
-    CompileBatch(JavaCompilerService parent, Collection<? extends JavaFileObject> files) {
+    /**
+     * Compile `files`, and if `onFile` isn't null, call it with the errors in each file as soon as javac has finished
+     * checking that file, instead of waiting for the whole batch.
+     */
+    CompileBatch(
+            JavaCompilerService parent,
+            JavaCompilerService.PooledCompiler compiler,
+            Collection<? extends JavaFileObject> files,
+            Consumer<PublishDiagnosticsParams> onFile) {
         this.parent = parent;
-        this.borrow = batchTask(parent, files);
+        this.compiler = compiler;
+        this.borrow = batchTask(files);
         this.trees = Trees.instance(borrow.task);
         this.elements = borrow.task.getElements();
         this.types = borrow.task.getTypes();
@@ -45,24 +63,31 @@ class CompileBatch implements AutoCloseable {
             for (var t : borrow.task.parse()) {
                 roots.add(t);
             }
+            if (onFile != null) {
+                analyzeEachFile(onFile);
+            }
             // The results of borrow.task.analyze() are unreliable when errors are present
             // You can get at `Element` values using `Trees`
             borrow.task.analyze();
         } catch (IOException e) {
+            borrow.close();
             throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            // Release the task, so the caller can return the compiler to the pool
+            borrow.close();
+            throw e;
         }
     }
 
     @Override
     public void close() {
         borrow.close();
+        parent.returnCompiler(compiler);
     }
 
-    private static ReusableCompiler.Borrow batchTask(
-            JavaCompilerService parent, Collection<? extends JavaFileObject> sources) {
-        parent.diags.clear();
+    private ReusableCompiler.Borrow batchTask(Collection<? extends JavaFileObject> sources) {
         var options = JavaCompilerService.options(parent.classPath, parent.addExports);
-        return parent.compiler.getTask(null, parent.fileManager, parent.diags::add, options, List.of(), sources);
+        return compiler.compiler.getTask(null, compiler.fileManager, diags::add, options, List.of(), sources);
     }
 
     CompilationUnitTree root(URI uri) {
@@ -97,38 +122,77 @@ class CompileBatch implements AutoCloseable {
         return name.charAt(0) == '_'; // TODO quick fix
     }
 
+    /**
+     * Analyze the batch one file at a time, in order, reporting the errors in each file as soon as javac has finished
+     * the FLOW phase for that file. Files with nothing to analyze, for example because of errors in an earlier phase,
+     * are reported by reportErrors() when the whole batch is finished.
+     */
+    private void analyzeEachFile(Consumer<PublishDiagnosticsParams> onFile) throws IOException {
+        var task = (JavacTaskImpl) borrow.task;
+        var classesByFile = new HashMap<URI, List<Element>>();
+        for (var el : task.enter()) {
+            if (!(el instanceof TypeElement)) continue;
+            var path = trees.getPath(el);
+            if (path == null) continue;
+            var uri = path.getCompilationUnit().getSourceFile().toUri();
+            classesByFile.computeIfAbsent(uri, __ -> new ArrayList<>()).add(el);
+        }
+        for (var root : roots) {
+            var classes = classesByFile.get(root.getSourceFile().toUri());
+            if (classes == null) continue;
+            task.analyze(classes);
+            onFile.accept(report(root));
+        }
+    }
+
+    /** Errors in every file in the batch, re-using the reports that were already streamed if nothing has changed */
     Collection<PublishDiagnosticsParams> reportErrors() {
-        // Construct empty lists
-        var byUri = new HashMap<URI, PublishDiagnosticsParams>();
-        for (var r : roots) {
-            var params = new PublishDiagnosticsParams();
-            params.uri = r.getSourceFile().toUri();
-            byUri.put(params.uri, params);
+        var result = new ArrayList<PublishDiagnosticsParams>();
+        for (var root : roots) {
+            var uri = root.getSourceFile().toUri();
+            var existing = reports.get(uri);
+            if (existing != null && reportedDiags.get(uri) == countDiags(uri)) {
+                result.add(existing);
+            } else {
+                result.add(report(root));
+            }
+        }
+        return result;
+    }
+
+    private int countDiags(URI uri) {
+        var count = 0;
+        for (var d : diags) {
+            var source = d.getSource();
+            if (source != null && source.toUri().equals(uri)) count++;
         }
+        return count;
+    }
+
+    private PublishDiagnosticsParams report(CompilationUnitTree root) {
+        var params = new PublishDiagnosticsParams();
+        params.uri = root.getSourceFile().toUri();
         // Convert diags
-        for (var d : parent.diags) {
+        var count = 0;
+        for (var d : diags) {
             var source = d.getSource();
-            if (source == null) continue;
-            var uri = source.toUri();
-            if (!byUri.containsKey(uri)) continue;
-            var convert = asDiagnostic(d);
-            byUri.get(uri).diagnostics.add(convert);
+            if (source == null || !source.toUri().equals(params.uri)) continue;
+            params.diagnostics.add(asDiagnostic(d));
+            count++;
         }
         // Check for unused privates
-        for (var r : roots) {
-            var uri = r.getSourceFile().toUri();
-            var warnUnused = new WarnUnused(borrow.task);
-            warnUnused.scan(r, null);
-            for (var unusedEl : warnUnused.notUsed()) {
-                if (okUnused(unusedEl.getSimpleName())) continue;
-                var warn = warnUnused(unusedEl);
-                byUri.get(uri).diagnostics.add(warn);
-            }
+        var warnUnused = new WarnUnused(borrow.task);
+        warnUnused.scan(root, null);
+        for (var unusedEl : warnUnused.notUsed()) {
+            if (okUnused(unusedEl.getSimpleName())) continue;
+            params.diagnostics.add(warnUnused(unusedEl));
         }
         // TODO hint fields that could be final
         // TODO hint unused exception
 
-        return byUri.values();
+        reports.put(params.uri, params);
+        reportedDiags.put(params.uri, count);
+        return params;
     }
 
     private static int severity(javax.tools.Diagnostic.Kind kind) {
@@ -146,15 +210,20 @@ class CompileBatch implements AutoCloseable {
         }
     }
 
-    private static Position position(String content, long offset) {
-        int line = 0, column = 0;
-        for (int i = 0; i < offset; i++) {
-            if (content.charAt(i) == '\n') {
-                line++;
-                column = 0;
-            } else column++;
-        }
-        return new Position(line, column);
+    /** Open documents already have a line index, and files on disk get one the first time they have an error */
+    private Rope lineIndex(URI uri) {
+        var index = lineIndexes.get(uri);
+        if (index != null) return index;
+        var content = FileStore.charContent(uri);
+        index = content instanceof Rope ? (Rope) content : Rope.of(content);
+        lineIndexes.put(uri, index);
+        return index;
+    }
+
+    private static Position position(Rope content, long offset) {
+        var i = (int) Math.max(0, Math.min(offset, content.length()));
+        var line = content.line(i);
+        return new Position(line, i - content.lineStart(line));
     }
 
     private org.javacs.lsp.Diagnostic warnUnused(Element unusedEl) {
@@ -165,7 +234,7 @@ class CompileBatch implements AutoCloseable {
         var start = pos.getStartPosition(root, leaf);
         var end = pos.getEndPosition(root, leaf);
         var uri = root.getSourceFile().toUri();
-        var contents = FileStore.contents(uri);
+        var contents = lineIndex(uri);
         if (leaf instanceof VariableTree) {
             var v = (VariableTree) leaf;
             var name = v.getName().toString();
@@ -191,7 +260,7 @@ class CompileBatch implements AutoCloseable {
         // Check that error is in an open file
         var uri = java.getSource().toUri();
         // Find start and end position
-        var content = FileStore.contents(uri);
+        var content = lineIndex(uri);
         var start = position(content, java.getStartPosition());
         var end = position(content, java.getEndPosition());
         var d = new org.javacs.lsp.Diagnostic();
@@ -290,6 +359,33 @@ class CompileBatch implements AutoCloseable {
         return Optional.of(list);
     }
 
+    /** Count the references in `uri` to each declaration on the source path */
+    Map<Ptr, Integer> countReferences(URI uri) {
+        var counts = new HashMap<Ptr, Integer>();
+        new CountReferences(borrow.task).scan(root(uri), counts);
+        return counts;
+    }
+
+    /** `to`, and the methods that `to` overrides, because a call to an overridden method may be a reference to `to` */
+    Set<Ptr> referencePtrs(Element to) {
+        var ptrs = new HashSet<Ptr>();
+        ptrs.add(new Ptr(to));
+        if (!(to instanceof ExecutableElement)) return ptrs;
+        var method = (ExecutableElement) to;
+        var enclosingClass = (TypeElement) method.getEnclosingElement();
+        for (var superType : supersWithSelf(enclosingClass.asType())) {
+            var superClass = types.asElement(superType);
+            if (superClass == null || superClass.equals(enclosingClass)) continue;
+            for (var other : superClass.getEnclosedElements()) {
+                if (!(other instanceof ExecutableElement)) continue;
+                if (elements.overrides(method, (ExecutableElement) other, enclosingClass)) {
+                    ptrs.add(new Ptr(other));
+                }
+            }
+        }
+        return ptrs;
+    }
+
     Optional<Range> range(TreePath path) {
         var uri = path.getCompilationUnit().getSourceFile().toUri();
         var contents = FileStore.contents(uri);
@@ -374,7 +470,7 @@ class CompileBatch implements AutoCloseable {
         var contents = contents(root);
         // Check diagnostics for missing imports
         var unresolved = new HashSet<String>();
-        for (var d : parent.diags) {
+        for (var d : diags) {
             if (d.getCode().equals("compiler.err.cant.resolve.location") && d.getSource().toUri().equals(uri)) {
                 long start = d.getStartPosition(), end = d.getEndPosition();
                 var id = contents.substring((int) start, (int) end);
@@ -440,7 +536,7 @@ class CompileBatch implements AutoCloseable {
     }
 
     private boolean hasErrors(URI uri) {
-        for (var d : parent.diags) {
+        for (var d : diags) {
             if (d.getKind() != javax.tools.Diagnostic.Kind.ERROR) continue;
             if (!d.getSource().toUri().equals(uri)) continue;
             if (d.getCode().equals("compiler.err.cant.resolve.location")) continue;
@@ -1226,11 +1322,11 @@ class CompileBatch implements AutoCloseable {
     private boolean isPublicClassFile(String className) {
         try {
             var platform =
-                    parent.fileManager.getJavaFileForInput(
+                    compiler.fileManager.getJavaFileForInput(
                             StandardLocation.PLATFORM_CLASS_PATH, className, JavaFileObject.Kind.CLASS);
             if (platform != null) return isPublic(platform);
             var classpath =
-                    parent.fileManager.getJavaFileForInput(
+                    compiler.fileManager.getJavaFileForInput(
                             StandardLocation.CLASS_PATH, className, JavaFileObject.Kind.CLASS);
             if (classpath != null) return isPublic(classpath);
             return false;
@@ -0,0 +1,71 @@
+package org.javacs;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.*;
+import java.util.HashMap;
+import java.util.Map;
+import javax.lang.model.element.*;
+
+/** CountReferences counts the references in a file to each class, method and field declared on the source path */
+class CountReferences extends TreePathScanner<Void, Map<Ptr, Integer>> {
+    private final Trees trees;
+    /** isSource[className] is true if the top-level class `className` is declared in a file on the source path */
+    private final Map<String, Boolean> isSource = new HashMap<>();
+
+    CountReferences(JavacTask task) {
+        this.trees = Trees.instance(task);
+    }
+
+    void count(TreePath from, Map<Ptr, Integer> counts) {
+        var to = trees.getElement(from);
+        if (to == null || !isDeclaredInSource(to)) return;
+        counts.merge(new Ptr(to), 1, Integer::sum);
+    }
+
+    private boolean isDeclaredInSource(Element to) {
+        switch (to.getKind()) {
+            case CLASS:
+            case INTERFACE:
+            case ENUM:
+            case ANNOTATION_TYPE:
+            case METHOD:
+            case CONSTRUCTOR:
+            case FIELD:
+            case ENUM_CONSTANT:
+                break;
+            default:
+                return false;
+        }
+        TypeElement top = null;
+        for (var e = to; e != null && !(e instanceof PackageElement); e = e.getEnclosingElement()) {
+            if (e instanceof TypeElement) top = (TypeElement) e;
+        }
+        if (top == null) return false;
+        var className = top.getQualifiedName().toString();
+        return isSource.computeIfAbsent(className, name -> FileStore.findDeclaringFile(name).isPresent());
+    }
+
+    @Override
+    public Void visitMemberReference(MemberReferenceTree t, Map<Ptr, Integer> counts) {
+        count(getCurrentPath(), counts);
+        return super.visitMemberReference(t, counts);
+    }
+
+    @Override
+    public Void visitMemberSelect(MemberSelectTree t, Map<Ptr, Integer> counts) {
+        count(getCurrentPath(), counts);
+        return super.visitMemberSelect(t, counts);
+    }
+
+    @Override
+    public Void visitIdentifier(IdentifierTree t, Map<Ptr, Integer> counts) {
+        count(getCurrentPath(), counts);
+        return super.visitIdentifier(t, counts);
+    }
+
+    @Override
+    public Void visitNewClass(NewClassTree t, Map<Ptr, Integer> counts) {
+        count(getCurrentPath(), counts);
+        return super.visitNewClass(t, counts);
+    }
+}
@@ -0,0 +1,45 @@
+package org.javacs;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/** DiskCache locates the directories where indexes are persisted between sessions of the language server. */
+class DiskCache {
+    /** Root of all caches, usually ~/.cache/java-language-server */
+    static Path root() {
+        var xdg = System.getenv("XDG_CACHE_HOME");
+        var base = xdg != null && !xdg.isBlank() ? Paths.get(xdg) : Paths.get(System.getProperty("user.home"), ".cache");
+        return base.resolve("java-language-server");
+    }
+
+    /** Cache directory that belongs to one set of workspace roots */
+    static Path workspace(Collection<Path> workspaceRoots) {
+        var roots = new ArrayList<String>();
+        for (var r : workspaceRoots) {
+            roots.add(r.toAbsolutePath().normalize().toString());
+        }
+        Collections.sort(roots);
+        return root().resolve("workspace-" + hash(String.join(File.pathSeparator, roots)));
+    }
+
+    /** A short, stable hex digest of `key`, suitable for use as a file name */
+    static String hash(String key) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            var hex = new StringBuilder();
+            for (var i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
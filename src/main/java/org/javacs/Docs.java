@@ -30,7 +30,7 @@ public class Docs {
         }
     }
 
-    public Optional<JavaFileObject> find(Ptr ptr) {
+    public synchronized Optional<JavaFileObject> find(Ptr ptr) {
         LOG.info(String.format("...looking for file for `%s`...", ptr));
 
         // Find the file el was declared in
@@ -62,7 +62,7 @@ public class Docs {
 
     private static Optional<Path> cacheSrcZip;
 
-    private static Optional<Path> srcZip() {
+    private static synchronized Optional<Path> srcZip() {
         if (cacheSrcZip == null) {
             cacheSrcZip = findSrcZip();
         }
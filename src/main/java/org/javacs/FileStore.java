@@ -6,22 +6,25 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import org.javacs.lsp.DidChangeTextDocumentParams;
@@ -31,13 +34,18 @@ import org.javacs.lsp.TextDocumentContentChangeEvent;
 
 class FileStore {
 
-    private static final Set<Path> workspaceRoots = new HashSet<>();
+    private static final Set<Path> workspaceRoots = ConcurrentHashMap.newKeySet();
 
-    private static final Map<URI, VersionedContent> activeDocuments = new HashMap<>();
+    private static final Map<URI, VersionedContent> activeDocuments = new ConcurrentHashMap<>();
 
-    /** javaSources[file] is the javaSources time of a .java source file. */
-    // TODO organize by package name for speed of list(...)
-    private static final TreeMap<Path, Info> javaSources = new TreeMap<>();
+    /** snapshot is a frozen copy of activeDocuments, used by requests that run on worker threads */
+    private static final ThreadLocal<Map<URI, VersionedContent>> snapshot = new ThreadLocal<>();
+
+    /** javaSources[file] is the modified time and package name of a .java source file. */
+    private static final ConcurrentSkipListMap<Path, Info> javaSources = new ConcurrentSkipListMap<>();
+
+    /** packages[packageName] is all the .java source files that declare `package packageName` */
+    private static final Map<String, Set<Path>> packages = new ConcurrentHashMap<>();
 
     private static class Info {
         final Instant modified;
@@ -49,11 +57,11 @@ class FileStore {
         }
     }
 
-    static void setWorkspaceRoots(Set<Path> newRoots) {
+    static synchronized void setWorkspaceRoots(Set<Path> newRoots) {
         newRoots = normalize(newRoots);
         for (var root : workspaceRoots) {
             if (!newRoots.contains(root)) {
-                workspaceRoots.removeIf(f -> f.startsWith(root));
+                removeFiles(root);
             }
         }
         for (var root : newRoots) {
@@ -63,6 +71,8 @@ class FileStore {
         }
         workspaceRoots.clear();
         workspaceRoots.addAll(newRoots);
+        WordIndex.setWorkspaceRoots(workspaceRoots);
+        SymbolIndex.refreshInBackground();
     }
 
     private static Set<Path> normalize(Set<Path> newRoots) {
@@ -74,61 +84,52 @@ class FileStore {
     }
 
     private static void addFiles(Path root) {
-        try {
-            Files.walk(root).filter(FileStore::isJavaFile).forEach(FileStore::readInfoFromDisk);
+        try (var walk = Files.walk(root)) {
+            walk.filter(FileStore::isJavaFile).forEach(FileStore::readInfoFromDisk);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static void checkForDeletedFiles() {
-        var notExists = new ArrayList<Path>();
-        for (var file : javaSources.keySet()) {
-            if (!Files.exists(file) && !activeDocuments.containsKey(file.toUri())) {
-                notExists.add(file);
-            }
-        }
-        for (var file : notExists) {
-            LOG.info(file.getFileName() + " no longer exists");
-            javaSources.remove(file);
+    private static void removeFiles(Path root) {
+        for (var file : javaSourcesIn(root)) {
+            removeInfo(file);
         }
     }
 
     static Collection<Path> all() {
-        checkForDeletedFiles();
-        return javaSources.keySet();
+        return Collections.unmodifiableSet(javaSources.keySet());
     }
 
     static List<Path> list(String packageName) {
-        checkForDeletedFiles();
-        var list = new ArrayList<Path>();
-        for (var file : javaSources.keySet()) {
-            if (javaSources.get(file).packageName.equals(packageName)) {
-                list.add(file);
-            }
-        }
-        return list;
+        var files = packages.get(packageName);
+        if (files == null) return List.of();
+        return new ArrayList<>(files);
     }
 
     static Set<Path> sourceRoots() {
-        checkForDeletedFiles();
         var roots = new HashSet<Path>();
-        for (var file : javaSources.keySet()) {
-            var root = sourceRoot(file);
-            if (root != null) {
-                roots.add(root);
+        for (var packageName : packages.keySet()) {
+            // Files in the same directory have the same source root, so we only need to check each directory once
+            var dirs = new HashSet<Path>();
+            for (var file : packages.getOrDefault(packageName, Set.of())) {
+                dirs.add(file.getParent());
+            }
+            for (var dir : dirs) {
+                var root = sourceRoot(dir, packageName);
+                if (root != null) {
+                    roots.add(root);
+                }
             }
         }
         return roots;
     }
 
-    private static Path sourceRoot(Path file) {
-        var info = javaSources.get(file);
-        var parts = info.packageName.split("\\.");
-        var dir = file.getParent();
+    private static Path sourceRoot(Path dir, String packageName) {
+        var parts = packageName.split("\\.");
         for (var i = parts.length - 1; i >= 0; i--) {
             var end = parts[i];
-            if (dir.endsWith(end)) {
+            if (dir != null && dir.endsWith(end)) {
                 dir = dir.getParent();
             } else {
                 return null;
@@ -143,24 +144,26 @@ class FileStore {
 
     static Instant modified(Path file) {
         // If file is open, use last in-memory modification time
-        if (activeDocuments.containsKey(file.toUri())) {
-            return activeDocuments.get(file.toUri()).modified;
+        var open = documents().get(file.toUri());
+        if (open != null) {
+            return open.modified;
         }
         // If we've never checked before, look up modified time on disk
-        if (!javaSources.containsKey(file)) {
-            readInfoFromDisk(file);
-        }
-        // Look up modified time from cache
-        return javaSources.get(file).modified;
+        return info(file).modified;
     }
 
     static String packageName(Path file) {
-        // If we've never checked before, look up package name on disk
-        if (!javaSources.containsKey(file)) {
-            readInfoFromDisk(file);
-        }
-        // Look up package name from cache
-        return javaSources.get(file).packageName;
+        return info(file).packageName;
+    }
+
+    private static Info info(Path file) {
+        var info = javaSources.get(file);
+        if (info != null) return info;
+        // If we've never checked before, look up info on disk
+        readInfoFromDisk(file);
+        info = javaSources.get(file);
+        if (info == null) throw new RuntimeException(file + " does not exist");
+        return info;
     }
 
     static String suggestedPackageName(Path file) {
@@ -201,24 +204,67 @@ class FileStore {
     }
 
     static void externalDelete(Path file) {
-        javaSources.remove(file);
+        removeInfo(file);
     }
 
     private static void readInfoFromDisk(Path file) {
         try {
             var time = Files.getLastModifiedTime(file).toInstant();
             var packageName = StringSearch.packageName(file);
-            javaSources.put(file, new Info(time, packageName));
+            putInfo(file, new Info(time, packageName));
+        } catch (NoSuchFileException e) {
+            LOG.info(file.getFileName() + " no longer exists");
+            removeInfo(file);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static void putInfo(Path file, Info info) {
+        var old = javaSources.put(file, info);
+        if (old != null && !old.packageName.equals(info.packageName)) {
+            removeFromPackage(file, old.packageName);
+        }
+        packages.compute(
+                info.packageName,
+                (__, files) -> {
+                    if (files == null) files = new ConcurrentSkipListSet<>();
+                    files.add(file);
+                    return files;
+                });
+        WordIndex.invalidate(file);
+        SymbolIndex.invalidate(file);
+        // Files we're seeing for the first time can't have anything cached yet
+        if (old != null) Cache.invalidate(file);
+    }
+
+    private static void removeInfo(Path file) {
+        var old = javaSources.remove(file);
+        if (old != null) {
+            removeFromPackage(file, old.packageName);
+        }
+        WordIndex.invalidate(file);
+        SymbolIndex.invalidate(file);
+        Cache.invalidate(file);
+    }
+
+    private static void removeFromPackage(Path file, String packageName) {
+        packages.computeIfPresent(
+                packageName,
+                (__, files) -> {
+                    files.remove(file);
+                    return files.isEmpty() ? null : files;
+                });
+    }
+
     static void open(DidOpenTextDocumentParams params) {
         var document = params.textDocument;
         var uri = document.uri;
         if (!isJavaFile(uri)) return;
-        activeDocuments.put(uri, new VersionedContent(document.text, document.version));
+        activeDocuments.put(uri, new VersionedContent(Rope.of(document.text), document.version));
+        WordIndex.invalidate(Paths.get(uri));
+        SymbolIndex.invalidate(Paths.get(uri));
+        Cache.invalidate(Paths.get(uri));
     }
 
     static void change(DidChangeTextDocumentParams params) {
@@ -230,11 +276,14 @@ class FileStore {
 
             if (document.version > existing.version) {
                 for (var change : params.contentChanges) {
-                    if (change.range == null) newText = change.text;
+                    if (change.range == null) newText = Rope.of(change.text);
                     else newText = patch(newText, change);
                 }
 
                 activeDocuments.put(uri, new VersionedContent(newText, document.version));
+                WordIndex.invalidate(Paths.get(uri));
+                SymbolIndex.invalidate(Paths.get(uri));
+                Cache.invalidate(Paths.get(uri));
             } else LOG.warning("Ignored change with version " + document.version + " <= " + existing.version);
         }
     }
@@ -245,24 +294,64 @@ class FileStore {
         if (isJavaFile(uri)) {
             // Remove from source cache
             activeDocuments.remove(uri);
+            WordIndex.invalidate(Paths.get(uri));
+            SymbolIndex.invalidate(Paths.get(uri));
+            Cache.invalidate(Paths.get(uri));
         }
     }
 
     static Set<URI> activeDocuments() {
-        return activeDocuments.keySet();
+        return documents().keySet();
+    }
+
+    /** Copy the open documents, so a request can see them as they are now while later edits are applied */
+    static Map<URI, VersionedContent> snapshot() {
+        return Map.copyOf(activeDocuments);
+    }
+
+    /** Run `task` on the current thread, seeing the open documents as they were when `documents` was taken */
+    static void withSnapshot(Map<URI, VersionedContent> documents, Runnable task) {
+        snapshot.set(documents);
+        try {
+            task.run();
+        } finally {
+            snapshot.remove();
+        }
+    }
+
+    /**
+     * Run `task` seeing the open documents as they are now, even if this thread is using a snapshot. Indexes that are
+     * shared by every request use this, so they never record an old version of a file as the latest one.
+     */
+    static <T> T withoutSnapshot(Supplier<T> task) {
+        var saved = snapshot.get();
+        snapshot.remove();
+        try {
+            return task.get();
+        } finally {
+            if (saved != null) snapshot.set(saved);
+        }
+    }
+
+    private static Map<URI, VersionedContent> documents() {
+        var documents = snapshot.get();
+        if (documents != null) return documents;
+        return activeDocuments;
     }
 
     static int version(URI file) {
-        if (!activeDocuments.containsKey(file)) return -1;
-        return activeDocuments.get(file).version;
+        var open = documents().get(file);
+        if (open == null) return -1;
+        return open.version;
     }
 
     static String contents(URI file) {
         if (!isJavaFile(file)) {
             throw new RuntimeException(file + " is not a java file");
         }
-        if (activeDocuments.containsKey(file)) {
-            return activeDocuments.get(file).content;
+        var open = documents().get(file);
+        if (open != null) {
+            return open.content.toString();
         }
         try {
             // TODO I think there is a faster path here
@@ -276,10 +365,20 @@ class FileStore {
         return contents(file.toUri());
     }
 
+    /** Like contents(file), but open documents are returned as a Rope, without copying them into a String */
+    static CharSequence charContent(URI file) {
+        var open = documents().get(file);
+        if (open != null) {
+            return open.content;
+        }
+        return contents(file);
+    }
+
     static InputStream inputStream(Path file) {
         var uri = file.toUri();
-        if (activeDocuments.containsKey(uri)) {
-            var string = activeDocuments.get(uri).content;
+        var open = documents().get(uri);
+        if (open != null) {
+            var string = open.content.toString();
             var bytes = string.getBytes();
             return new ByteArrayInputStream(bytes);
         }
@@ -292,8 +391,9 @@ class FileStore {
 
     static BufferedReader bufferedReader(Path file) {
         var uri = file.toUri();
-        if (activeDocuments.containsKey(uri)) {
-            var string = activeDocuments.get(uri).content;
+        var open = documents().get(uri);
+        if (open != null) {
+            var string = open.content.toString();
             return new BufferedReader(new StringReader(string));
         }
         try {
@@ -307,41 +407,11 @@ class FileStore {
         return bufferedReader(file);
     }
 
-    private static String patch(String sourceText, TextDocumentContentChangeEvent change) {
-        try {
-            var range = change.range;
-            var reader = new BufferedReader(new StringReader(sourceText));
-            var writer = new StringWriter();
-
-            // Skip unchanged lines
-            int line = 0;
-
-            while (line < range.start.line) {
-                writer.write(reader.readLine() + '\n');
-                line++;
-            }
-
-            // Skip unchanged chars
-            for (int character = 0; character < range.start.character; character++) {
-                writer.write(reader.read());
-            }
-
-            // Write replacement text
-            writer.write(change.text);
-
-            // Skip replaced text
-            reader.skip(change.rangeLength);
-
-            // Write remaining text
-            while (true) {
-                int next = reader.read();
-
-                if (next == -1) return writer.toString();
-                else writer.write(next);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    private static Rope patch(Rope sourceText, TextDocumentContentChangeEvent change) {
+        var range = change.range;
+        var start = sourceText.offset(range.start.line, range.start.character);
+        var end = sourceText.offset(range.end.line, range.end.character);
+        return sourceText.replace(start, end, change.text);
     }
 
     static boolean isJavaFile(Path file) {
@@ -363,8 +433,9 @@ class FileStore {
         var packageName = StringSearch.mostName(qualifiedName);
         var className = StringSearch.lastName(qualifiedName);
         // Fast path: look for text `class Foo` in file Foo.java
+        var fileName = className + ".java";
         for (var f : list(packageName)) {
-            if (f.getFileName().toString().equals(className) && StringSearch.containsClass(f, className)) {
+            if (f.getFileName().toString().equals(fileName) && StringSearch.containsClass(f, className)) {
                 return Optional.of(f);
             }
         }
@@ -381,11 +452,11 @@ class FileStore {
 }
 
 class VersionedContent {
-    final String content;
+    final Rope content;
     final int version;
     final Instant modified = Instant.now();
 
-    VersionedContent(String content, int version) {
+    VersionedContent(Rope content, int version) {
         Objects.requireNonNull(content, "content is null");
         this.content = content;
         this.version = version;
@@ -0,0 +1,135 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * GradleIndex finds jars in the gradle cache, which are stored in places like
+ * caches/modules-2/files-2.1/groupId/artifactId/version/hash/file.jar. The cache is often very large, so instead of
+ * searching it for each artifact, we walk it once, in parallel, and keep an index in memory. The index is rebuilt when
+ * a group is added or removed, and artifacts that have been added to an existing group are found by looking in their
+ * version directory directly.
+ */
+class GradleIndex {
+    private static final Map<Path, GradleIndex> indexes = new HashMap<>();
+
+    /** The index of the gradle cache in `gradleHome`, which is built or rebuilt if necessary */
+    static synchronized GradleIndex of(Path gradleHome) {
+        // Jars are found relative to gradleHome as given, but the same cache is only indexed once
+        var caches = gradleHome.resolve("caches");
+        var key = caches.toAbsolutePath().normalize();
+        var index = indexes.get(key);
+        if (index == null || index.isStale() || !index.caches.equals(caches)) {
+            index = new GradleIndex(caches);
+            indexes.put(key, index);
+        }
+        return index;
+    }
+
+    private final Path caches;
+    /** The files-2.1 directories, which contain one directory for each group */
+    private final List<Path> filesDirs = new ArrayList<>();
+    /** modified[dir] is the last-modified time of each directory above the artifacts when we indexed it */
+    private final Map<Path, Long> modified = new HashMap<>();
+    /** jars["groupId:artifactId:version:file.jar"] is the location of file.jar */
+    private final Map<String, Path> jars = new ConcurrentHashMap<>();
+
+    private GradleIndex(Path caches) {
+        this.caches = caches;
+        var started = Instant.now();
+        modified.put(caches, lastModified(caches));
+        for (var modules : list(caches, "modules-*")) {
+            modified.put(modules, lastModified(modules));
+            filesDirs.addAll(list(modules, "files-*"));
+        }
+        var groupDirs = new ArrayList<Path>();
+        for (var files : filesDirs) {
+            modified.put(files, lastModified(files));
+            groupDirs.addAll(list(files, "*"));
+        }
+        for (var group : groupDirs) {
+            modified.put(group, lastModified(group));
+        }
+        groupDirs.parallelStream().forEach(this::indexGroup);
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("Indexed %d jars in %s in %d ms", jars.size(), caches, elapsed));
+    }
+
+    /** Find groupId/artifactId/version/hash/fileName, for any hash */
+    Optional<Path> find(String groupId, String artifactId, String version, String fileName) {
+        var key = String.join(":", groupId, artifactId, version, fileName);
+        var found = jars.get(key);
+        if (found != null) return Optional.of(found);
+        // A new version of an artifact only changes the modified time of the artifact directory, so check directly
+        for (var files : filesDirs) {
+            for (var hash : list(files.resolve(groupId).resolve(artifactId).resolve(version), "*")) {
+                var jar = hash.resolve(fileName);
+                if (Files.exists(jar)) {
+                    jars.put(key, jar);
+                    return Optional.of(jar);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private boolean isStale() {
+        for (var dir : modified.keySet()) {
+            if (lastModified(dir) != modified.get(dir)) return true;
+        }
+        return false;
+    }
+
+    private void indexGroup(Path group) {
+        try (var stream = Files.walk(group, 4)) {
+            stream.forEach(
+                    file -> {
+                        var relative = group.relativize(file);
+                        if (relative.getNameCount() != 4 || !file.toString().endsWith(".jar")) return;
+                        var artifactId = relative.getName(0).toString();
+                        var version = relative.getName(1).toString();
+                        var fileName = relative.getName(3).toString();
+                        var key = String.join(":", group.getFileName().toString(), artifactId, version, fileName);
+                        jars.putIfAbsent(key, file);
+                    });
+        } catch (IOException | UncheckedIOException e) {
+            LOG.warning(String.format("Failed to index %s: %s", group, e.getMessage()));
+        }
+    }
+
+    /** Entries of `dir` that match `glob`, or nothing if `dir` doesn't exist */
+    private static List<Path> list(Path dir, String glob) {
+        var result = new ArrayList<Path>();
+        if (!Files.isDirectory(dir)) return result;
+        try (var stream = Files.newDirectoryStream(dir, glob)) {
+            for (var p : stream) {
+                if (Files.isDirectory(p)) result.add(p);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    private static long lastModified(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir).toMillis();
+        } catch (IOException e) {
+            // The directory is gone, which means the index is stale
+            return -1;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
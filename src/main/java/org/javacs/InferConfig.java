@@ -2,7 +2,6 @@ package org.javacs;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -26,6 +25,10 @@ class InferConfig {
     private final Path mavenHome;
     /** Location of the gradle cache, usually ~/.gradle */
     private final Path gradleHome;
+    /** Index of the jars in gradleHome, which we look up the first time we need it */
+    private GradleIndex gradleIndex;
+    /** Dependencies of a bazel workspace, which classPath() and buildDocPath() share so the workspace is walked once */
+    private BazelDeps bazelDeps;
 
     InferConfig(Path workspaceRoot, Collection<String> externalDependencies, Path mavenHome, Path gradleHome) {
         this.workspaceRoot = workspaceRoot;
@@ -50,6 +53,12 @@ class InferConfig {
         return Paths.get(System.getProperty("user.home")).resolve(".gradle");
     }
 
+    /** Is `file` one of the build files that classPath() and buildDocPath() read? */
+    static boolean isBuildFile(Path file) {
+        var name = file.getFileName().toString();
+        return name.equals("pom.xml") || name.equals("build.gradle") || BazelDeps.isBuildFile(name);
+    }
+
     /** Find .jar files for external dependencies, for examples maven dependencies in ~/.m2 or jars in bazel-genfiles */
     Set<Path> classPath() {
         // externalDependencies
@@ -67,17 +76,24 @@ class InferConfig {
         // Maven
         var pomXml = workspaceRoot.resolve("pom.xml");
         if (Files.exists(pomXml)) {
-            return mvnDependencies(pomXml, "dependency:list");
+            return mavenDependencies(pomXml, false);
         }
 
         // Bazel
         if (Files.exists(workspaceRoot.resolve("WORKSPACE"))) {
-            return bazelDeps("jars");
+            return bazelDeps().jars;
         }
 
         return Collections.emptySet();
     }
 
+    private BazelDeps bazelDeps() {
+        if (bazelDeps == null) {
+            bazelDeps = BazelDeps.of(workspaceRoot);
+        }
+        return bazelDeps;
+    }
+
     /** Find source .jar files in local maven repository. */
     Set<Path> buildDocPath() {
         // externalDependencies
@@ -95,12 +111,12 @@ class InferConfig {
         // Maven
         var pomXml = workspaceRoot.resolve("pom.xml");
         if (Files.exists(pomXml)) {
-            return mvnDependencies(pomXml, "dependency:sources");
+            return mavenDependencies(pomXml, true);
         }
 
         // Bazel
         if (Files.exists(workspaceRoot.resolve("WORKSPACE"))) {
-            return bazelDeps("srcjar");
+            return bazelDeps().srcJars;
         }
 
         return Collections.emptySet();
@@ -127,33 +143,23 @@ class InferConfig {
     }
 
     private Optional<Path> findGradleJar(Artifact artifact, boolean source) {
-        // Search for caches/modules-*/files-*/groupId/artifactId/version/*/artifactId-version[-sources].jar
-        var base = gradleHome.resolve("caches");
-        var pattern =
-                "glob:"
-                        + String.join(
-                                File.separator,
-                                base.toString(),
-                                "modules-*",
-                                "files-*",
-                                artifact.groupId,
-                                artifact.artifactId,
-                                artifact.version,
-                                "*",
-                                fileName(artifact, source));
-        var match = FileSystems.getDefault().getPathMatcher(pattern);
-
-        try {
-            return Files.walk(base, 7).filter(match::matches).findFirst();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (gradleIndex == null) {
+            gradleIndex = GradleIndex.of(gradleHome);
         }
+        return gradleIndex.find(artifact.groupId, artifact.artifactId, artifact.version, fileName(artifact, source));
     }
 
     private String fileName(Artifact artifact, boolean source) {
         return artifact.artifactId + '-' + artifact.version + (source ? "-sources" : "") + ".jar";
     }
 
+    /** Resolve dependencies from the local repository, or if that doesn't work, ask mvn */
+    private Set<Path> mavenDependencies(Path pomXml, boolean sources) {
+        var resolved = MavenResolver.resolve(pomXml, mavenHome.resolve("repository"), sources);
+        if (resolved.isPresent()) return resolved.get();
+        return mvnDependencies(pomXml, sources ? "dependency:sources" : "dependency:list");
+    }
+
     static Set<Path> mvnDependencies(Path pomXml, String goal) {
         Objects.requireNonNull(pomXml, "pom.xml path is null");
         try {
@@ -197,7 +203,9 @@ class InferConfig {
         }
     }
 
-    private static final Pattern DEPENDENCY = Pattern.compile("^\\[INFO\\]\\s+(.*:.*:.*:.*:.*):(/.*)$");
+    // Newer versions of maven-dependency-plugin add the module name, for example `... -- module gson (auto)`
+    private static final Pattern DEPENDENCY =
+            Pattern.compile("^\\[INFO\\]\\s+(.*:.*:.*:.*:.*):(/.*?)(?: -- module .*)?$");
 
     static Path readDependency(String line) {
         var match = DEPENDENCY.matcher(line);
@@ -236,7 +244,8 @@ class InferConfig {
     private static final Pattern LOCATION = Pattern.compile("(.*):\\d+:\\d+: source file @(.*)//jar:(.*\\.jar)");
     private static final Path NOT_FOUND = Paths.get("");
 
-    private Set<Path> bazelDeps(String labelsFilter) {
+    /** Run `bazel query labels(labelsFilter, deps(...))`, or return nothing if bazel fails */
+    static Optional<Set<Path>> bazelQuery(Path workspaceRoot, String labelsFilter) {
         try {
             // Run bazel as a subprocess
             var query = "labels(" + labelsFilter + ", deps(...))";
@@ -254,7 +263,7 @@ class InferConfig {
             var result = process.waitFor();
             if (result != 0) {
                 LOG.severe("`" + String.join(" ", command) + "` returned " + result);
-                return Set.of();
+                return Optional.empty();
             }
             // Read output
             var dependencies = new HashSet<Path>();
@@ -264,13 +273,13 @@ class InferConfig {
                     dependencies.add(jar);
                 }
             }
-            return dependencies;
+            return Optional.of(dependencies);
         } catch (InterruptedException | IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private Path findBazelJar(String line) {
+    private static Path findBazelJar(String line) {
         var matcher = LOCATION.matcher(line);
         if (!matcher.matches()) {
             LOG.warning(line + " does not look like a jar dependency");
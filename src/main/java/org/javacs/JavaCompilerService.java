@@ -1,13 +1,16 @@
 package org.javacs;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.nio.file.*;
 import java.time.Instant;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import javax.tools.*;
+import org.javacs.lsp.PublishDiagnosticsParams;
 import org.javacs.lsp.SymbolInformation;
 
 // TODO eliminate uses of URI in favor of Path
@@ -15,17 +18,103 @@ class JavaCompilerService {
     // Not modifiable! If you want to edit these, you need to create a new instance
     final Set<Path> classPath, docPath;
     final Set<String> addExports;
-    final ReusableCompiler compiler = new ReusableCompiler();
-    final Set<String> warmPackages = new HashSet<>();
     final Docs docs;
-    final Set<String> jdkClasses = Classes.jdkTopLevelClasses(), classPathClasses;
-    // Diagnostics from the last compilation task
-    final List<Diagnostic<? extends JavaFileObject>> diags = new ArrayList<>();
-    // Use the same file manager for multiple tasks, so we don't repeatedly re-compile the same files
-    // TODO intercept files that aren't in the batch and erase method bodies so compilation is faster
-    final SourceFileManager fileManager;
+    final Set<String> jdkClasses, classPathClasses;
+    /** The most compilers we will create, after taking into account the size of the heap */
+    final int maxCompilers;
+    /** If true, compilers see source-path files that aren't in the batch with their method bodies erased */
+    final boolean stubs;
+
+    /**
+     * Each PooledCompiler can run one CompileBatch at a time. It reuses its context, and its file manager, from batch
+     * to batch, so we don't repeatedly re-compile the same files.
+     */
+    static class PooledCompiler {
+        final ReusableCompiler compiler = new ReusableCompiler();
+        final SourceFileManager fileManager;
+        /** Packages whose package-private classes have already been compiled by this compiler */
+        final Set<String> warmPackages = new HashSet<>();
+
+        PooledCompiler(boolean stubs) {
+            this.fileManager = new SourceFileManager(stubs);
+        }
+    }
+
+    /**
+     * CompilerPool holds the compilers of one JavaCompilerService. When a service is reconfigured in a way that doesn't
+     * change the options of its compilers, the new service shares the pool, so it starts out with warm compilers.
+     */
+    private static class CompilerPool {
+        final int maxCompilers;
+        final boolean stubs;
+        private final List<PooledCompiler> idleCompilers = new ArrayList<>();
+        private int createdCompilers = 0;
+
+        CompilerPool(int maxCompilers, boolean stubs) {
+            this.maxCompilers = maxCompilers;
+            this.stubs = stubs;
+        }
+
+        /** Take an idle compiler, or create a new one, or wait until another batch is closed */
+        synchronized PooledCompiler borrow() {
+            while (true) {
+                var compiler = tryBorrow();
+                if (compiler != null) return compiler;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        /** Take an idle compiler, or create a new one, or return null instead of waiting if they are all in use */
+        synchronized PooledCompiler tryBorrow() {
+            if (!idleCompilers.isEmpty()) {
+                return idleCompilers.remove(idleCompilers.size() - 1);
+            }
+            if (createdCompilers < maxCompilers) {
+                createdCompilers++;
+                LOG.info(String.format("...create compiler %d/%d", createdCompilers, maxCompilers));
+                return new PooledCompiler(stubs);
+            }
+            return null;
+        }
+
+        synchronized void giveBack(PooledCompiler compiler) {
+            idleCompilers.add(compiler);
+            notifyAll();
+        }
+    }
+
+    /** By default, create as many compilers as there are cores, up to a limit */
+    static final int DEFAULT_COMPILERS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final CompilerPool pool;
+
+    /** Rough estimate of the heap used by the symbol tables of one compiler */
+    private static final long BYTES_PER_COMPILER = 256L * 1024 * 1024;
 
     JavaCompilerService(Set<Path> classPath, Set<Path> docPath, Set<String> addExports) {
+        this(classPath, docPath, addExports, DEFAULT_COMPILERS);
+    }
+
+    JavaCompilerService(Set<Path> classPath, Set<Path> docPath, Set<String> addExports, int compilers) {
+        this(classPath, docPath, addExports, compilers, true);
+    }
+
+    JavaCompilerService(
+            Set<Path> classPath, Set<Path> docPath, Set<String> addExports, int compilers, boolean stubs) {
+        this(classPath, docPath, addExports, compilers, stubs, null);
+    }
+
+    private JavaCompilerService(
+            Set<Path> classPath,
+            Set<Path> docPath,
+            Set<String> addExports,
+            int compilers,
+            boolean stubs,
+            JavaCompilerService previous) {
         System.err.println("Class path:");
         for (var p : classPath) {
             System.err.println("  " + p);
@@ -38,9 +127,73 @@ class JavaCompilerService {
         this.classPath = Collections.unmodifiableSet(classPath);
         this.docPath = Collections.unmodifiableSet(docPath);
         this.addExports = Collections.unmodifiableSet(addExports);
-        this.docs = new Docs(docPath);
-        this.classPathClasses = Classes.classPathTopLevelClasses(classPath);
-        this.fileManager = new SourceFileManager();
+        this.maxCompilers = limitCompilers(compilers);
+        this.stubs = stubs;
+        if (previous == null) {
+            this.jdkClasses = ClassIndex.jdk();
+            this.docs = new Docs(docPath);
+            this.classPathClasses = ClassIndex.classPath(classPath);
+            this.pool = new CompilerPool(maxCompilers, stubs);
+        } else {
+            this.jdkClasses = previous.jdkClasses;
+            this.docs = previous.docPath.equals(docPath) ? previous.docs : new Docs(docPath);
+            var sameClassPath = previous.classPath.equals(classPath);
+            this.classPathClasses = sameClassPath ? previous.classPathClasses : ClassIndex.classPath(classPath);
+            var sameOptions =
+                    sameClassPath
+                            && previous.addExports.equals(addExports)
+                            && previous.maxCompilers == maxCompilers
+                            && previous.stubs == stubs;
+            this.pool = sameOptions ? previous.pool : new CompilerPool(maxCompilers, stubs);
+            LOG.info(
+                    String.format(
+                            "Reconfigured compiler, reusing class path index: %s, compilers: %s",
+                            sameClassPath, sameOptions));
+        }
+        LOG.info(String.format("Using up to %d compilers", maxCompilers));
+    }
+
+    /**
+     * A compiler with new settings, which reuses the parts of this compiler that the new settings don't affect. For
+     * example, changing the doc path doesn't re-index the class path, or throw away the warm compilers.
+     */
+    JavaCompilerService reconfigure(Set<Path> classPath, Set<Path> docPath, Set<String> addExports, int compilers) {
+        if (this.classPath.equals(classPath)
+                && this.docPath.equals(docPath)
+                && this.addExports.equals(addExports)
+                && this.maxCompilers == limitCompilers(compilers)) {
+            LOG.info("...configuration is unchanged, keeping the current compiler");
+            return this;
+        }
+        logChanges("class path", this.classPath, classPath);
+        logChanges("doc path", this.docPath, docPath);
+        return new JavaCompilerService(classPath, docPath, addExports, compilers, stubs, this);
+    }
+
+    private static void logChanges(String name, Set<Path> before, Set<Path> after) {
+        var added = new TreeSet<Path>(after);
+        added.removeAll(before);
+        var removed = new TreeSet<Path>(before);
+        removed.removeAll(after);
+        if (added.isEmpty() && removed.isEmpty()) return;
+        LOG.info(String.format("...%s changed, %d added, %d removed", name, added.size(), removed.size()));
+        for (var p : added) LOG.info("  + " + p);
+        for (var p : removed) LOG.info("  - " + p);
+    }
+
+    /** Don't create more compilers than the heap can hold */
+    private static int limitCompilers(int compilers) {
+        var heap = Runtime.getRuntime().maxMemory();
+        var fit = (int) Math.max(1, heap / BYTES_PER_COMPILER);
+        return Math.max(1, Math.min(compilers, fit));
+    }
+
+    PooledCompiler borrowCompiler() {
+        return pool.borrow();
+    }
+
+    void returnCompiler(PooledCompiler compiler) {
+        pool.giveBack(compiler);
     }
 
     /** Combine source path or class path entries using the system separator, for example ':' in unix */
@@ -92,37 +245,70 @@ class JavaCompilerService {
     }
 
     CompileBatch compileUris(Collection<URI> uris) {
+        return compileUris(uris, null);
+    }
+
+    /** Compile `uris`, calling `onFile` with the errors in each file as soon as that file has been checked */
+    CompileBatch compileUris(Collection<URI> uris, Consumer<PublishDiagnosticsParams> onFile) {
+        return compileBatch(sourceFiles(uris), onFile, borrowCompiler());
+    }
+
+    /**
+     * Like compileUris, but if every compiler is in use, return empty instead of waiting for one. The main thread uses
+     * this, so it never waits for a request that is running on a worker thread.
+     */
+    Optional<CompileBatch> tryCompileUris(Collection<URI> uris, Consumer<PublishDiagnosticsParams> onFile) {
+        var sources = sourceFiles(uris);
+        var compiler = pool.tryBorrow();
+        if (compiler == null) return Optional.empty();
+        return Optional.of(compileBatch(sources, onFile, compiler));
+    }
+
+    private static List<JavaFileObject> sourceFiles(Collection<URI> uris) {
         if (uris.isEmpty()) throw new RuntimeException("No source files");
-        var files = new ArrayList<File>();
-        for (var p : uris) files.add(new File(p));
-        var sources = fileManager.getJavaFileObjectsFromFiles(files);
-        return compileBatch(sources);
+        var sources = new ArrayList<JavaFileObject>();
+        for (var uri : uris) sources.add(new SourceFileObject(uri));
+        return sources;
     }
 
     CompileBatch compilePaths(Collection<Path> paths) {
         if (paths.isEmpty()) throw new RuntimeException("No source files");
-        var files = new ArrayList<File>();
-        for (var path : paths) files.add(path.toFile());
-        var sources = fileManager.getJavaFileObjectsFromFiles(files);
+        var sources = new ArrayList<JavaFileObject>();
+        for (var path : paths) sources.add(new SourceFileObject(path));
         return compileBatch(sources);
     }
 
     CompileBatch compileBatch(Collection<? extends JavaFileObject> sources) {
-        warmUpPackages(sources);
-        return new CompileBatch(this, sources);
+        return compileBatch(sources, null, borrowCompiler());
+    }
+
+    /** Compile `sources` using `compiler`, which is given back to the pool when the batch is closed */
+    private CompileBatch compileBatch(
+            Collection<? extends JavaFileObject> sources,
+            Consumer<PublishDiagnosticsParams> onFile,
+            PooledCompiler compiler) {
+        try {
+            warmUpPackages(compiler, sources);
+            return new CompileBatch(this, compiler, sources, onFile);
+        } catch (RuntimeException e) {
+            returnCompiler(compiler);
+            throw e;
+        }
     }
 
     /**
      * The first time we compile a file in a new package, we need to compile all files in that package to discover
      * package-private classes.
      */
-    private void warmUpPackages(Collection<? extends JavaFileObject> sources) {
+    private void warmUpPackages(PooledCompiler compiler, Collection<? extends JavaFileObject> sources) {
+        var warmPackages = compiler.warmPackages;
+        var newPackages = new HashSet<String>();
         var needsCompile = new HashSet<Path>();
         for (var source : sources) {
             var uri = source.toUri();
             var path = Paths.get(uri);
             var pkg = FileStore.packageName(path);
-            if (!warmPackages.contains(pkg)) {
+            if (!warmPackages.contains(pkg) && newPackages.add(pkg)) {
                 LOG.info("...first time compiling sources in package " + pkg);
                 var filesInPackage = FileStore.list(pkg);
                 for (var f : filesInPackage) {
@@ -130,16 +316,24 @@ class JavaCompilerService {
                         needsCompile.add(f);
                     }
                 }
-                warmPackages.add(pkg);
             }
         }
         if (needsCompile.isEmpty()) {
+            warmPackages.addAll(newPackages);
             return;
         }
         // TODO consider pruning each source to speed up compile times
         LOG.info(String.format("...compile %d files that contain package-private classes", needsCompile.size()));
-        var batch = compilePaths(needsCompile);
-        batch.close();
+        var warmUp = new ArrayList<JavaFileObject>();
+        for (var path : needsCompile) warmUp.add(new SourceFileObject(path));
+        var options = options(classPath, addExports);
+        try (var borrow = compiler.compiler.getTask(null, compiler.fileManager, __ -> {}, options, List.of(), warmUp)) {
+            borrow.task.analyze();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // If the warm-up was cancelled, we'll try again next time
+        warmPackages.addAll(newPackages);
     }
 
     private boolean containsPackagePrivateClass(Path file) {
@@ -149,31 +343,7 @@ class JavaCompilerService {
 
     List<SymbolInformation> findSymbols(String query, int limit) {
         LOG.info(String.format("Searching for `%s`...", query));
-
-        var result = new ArrayList<SymbolInformation>();
-        var files = FileStore.all();
-        var checked = 0;
-        var parsed = 0;
-        for (var file : files) {
-            checked++;
-            // First do a fast check if the query matches anything in a file
-            if (!StringSearch.containsWordMatching(file, query)) continue;
-            // Parse the file and check class members for matches
-            LOG.info(String.format("...%s contains text matches", file.getFileName()));
-            var parse = Parser.parseFile(file.toUri());
-            var symbols = parse.findSymbolsMatching(query);
-            parsed++;
-            // If we confirm matches, add them to the results
-            if (symbols.size() > 0) {
-                LOG.info(String.format("...found %d occurrences", symbols.size()));
-            }
-            result.addAll(symbols);
-            // If results are full, stop
-            if (result.size() >= limit) break;
-        }
-        LOG.info(String.format("Found %d matches in %d/%d/%d files", result.size(), checked, parsed, files.size()));
-
-        return result;
+        return SymbolIndex.search(query, limit);
     }
 
     private static final Logger LOG = Logger.getLogger("main");
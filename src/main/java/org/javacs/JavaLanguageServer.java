@@ -2,13 +2,24 @@ package org.javacs;
 
 import com.google.gson.*;
 import com.sun.source.tree.*;
+import com.sun.source.util.TreePath;
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.lang.model.element.*;
 import javax.tools.JavaFileObject;
@@ -19,32 +30,166 @@ class JavaLanguageServer extends LanguageServer {
     private Path workspaceRoot;
     private final LanguageClient client;
     private JavaCompilerService cacheCompiler;
-    private JsonObject cacheSettings;
-    private JsonObject settings = new JsonObject();
-
-    JavaCompilerService compiler() {
-        if (!settings.equals(cacheSettings)) {
+    /** The settings that cacheCompiler was created with, and the settings we are creating the next compiler with */
+    private JsonObject cacheSettings, nextSettings;
+    private volatile JsonObject settings = new JsonObject();
+    /** Creates new compilers in the background, while requests keep using the old one */
+    private final ScheduledExecutorService configure =
+            Executors.newSingleThreadScheduledExecutor(
+                    task -> {
+                        var thread = new Thread(task, "configure-javac");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+    synchronized JavaCompilerService compiler() {
+        // The first compiler has to be created before we can do anything
+        if (cacheCompiler == null) {
+            var first = settings;
+            cacheCompiler = createCompiler(first, null);
+            cacheSettings = first;
+        } else if (!settings.equals(cacheSettings) && !settings.equals(nextSettings)) {
             LOG.info("Recreating compiler because\n\t" + settings + "\nis different than\n\t" + cacheSettings);
-            cacheCompiler = createCompiler();
-            cacheSettings = settings;
+            reconfigure(settings);
         }
         return cacheCompiler;
     }
 
+    /** Create a new compiler in the background, and swap it in when it's ready */
+    private synchronized void reconfigure(JsonObject next) {
+        nextSettings = next;
+        configure.execute(
+                () -> {
+                    JavaCompilerService previous;
+                    synchronized (this) {
+                        previous = cacheCompiler;
+                    }
+                    JavaCompilerService created;
+                    try {
+                        created = createCompiler(next, previous);
+                    } catch (RuntimeException e) {
+                        // Keep using the old compiler, and don't try these settings again
+                        LOG.log(Level.SEVERE, "Failed to create compiler", e);
+                        created = previous;
+                    }
+                    synchronized (this) {
+                        cacheCompiler = created;
+                        cacheSettings = next;
+                        if (nextSettings == next) nextSettings = null;
+                    }
+                    // Re-lint open files against the new class path. The reference index is kept, because references
+                    // between source files don't depend on the class path, and each file is re-indexed when it changes.
+                    if (created != previous) {
+                        lintAll = true;
+                    }
+                });
+    }
+
+    /** Wait this long after the last change to a build file before inferring the class path again */
+    private static final long BUILD_FILE_DELAY_MS = 1000;
+
+    private ScheduledFuture<?> buildFilesChanged;
+
+    /** Infer the class path again once the build files stop changing, for example after a branch switch */
+    private synchronized void buildFilesChanged() {
+        if (buildFilesChanged != null) buildFilesChanged.cancel(false);
+        buildFilesChanged = configure.schedule(this::invalidateCompiler, BUILD_FILE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Lint `uris`, waiting for a compiler if they are all in use */
     void lint(Collection<URI> uris) {
-        // TODO only lint the current focus, merging errors/decorations with existing
+        lint(uris, true);
+    }
+
+    /**
+     * Lint `uris`, or if `wait` is false and every compiler is in use by a request, return false without linting them.
+     * doAsyncWork runs on the main thread, so it doesn't wait, and tries again the next time the server is idle.
+     */
+    private boolean lint(Collection<URI> uris, boolean wait) {
         LOG.info("Lint " + uris.size() + " files...");
         var started = Instant.now();
-        if (uris.isEmpty()) return;
-        try (var batch = compiler().compileUris(uris)) {
-            // Report compilation errors
+        if (uris.isEmpty()) return true;
+        // Report compilation errors as soon as each file is checked, leaving errors in other files alone
+        var streamed = Collections.newSetFromMap(new IdentityHashMap<PublishDiagnosticsParams, Boolean>());
+        Consumer<PublishDiagnosticsParams> publish =
+                ds -> {
+                    client.publishDiagnostics(ds);
+                    streamed.add(ds);
+                };
+        var modified = new HashMap<URI, Instant>();
+        for (var uri : uris) {
+            modified.put(uri, FileStore.modified(Paths.get(uri)));
+        }
+        var compiler = compiler();
+        var batch =
+                wait ? compiler.compileUris(uris, publish) : compiler.tryCompileUris(uris, publish).orElse(null);
+        if (batch == null) {
+            LOG.info("...every compiler is in use, will lint later");
+            return false;
+        }
+        needsLint.removeAll(uris);
+        try (batch) {
+            // Report files that weren't streamed, or that got more errors after they were streamed
             for (var ds : batch.reportErrors()) {
-                client.publishDiagnostics(ds);
+                if (!streamed.contains(ds)) client.publishDiagnostics(ds);
             }
-            uncheckedChanges = false;
+            // Every file in the batch was compiled in full, so the code lenses can use its references
+            for (var uri : uris) {
+                referenceIndex.update(uri, modified.get(uri), batch.countReferences(uri));
+            }
+        }
+        for (var uri : uris) {
+            lintedVersions.put(uri, FileStore.version(uri));
+            lintedSignatures.put(uri, signature(uri));
         }
         var elapsed = Duration.between(started, Instant.now());
         LOG.info(String.format("...done linting in %d ms", elapsed.toMillis()));
+        return true;
+    }
+
+    /** Open files that need to be linted */
+    private final Set<URI> needsLint = new LinkedHashSet<>();
+    /** The file the user is editing, which is linted before anything else */
+    private URI focus;
+    /** The version of each open file when it was last linted */
+    private final Map<URI, Integer> lintedVersions = new HashMap<>();
+    /** The declarations in each open file when it was last linted, which other files see */
+    private final Map<URI, String> lintedSignatures = new HashMap<>();
+    /** Set when the compiler changes, because every open file needs to be linted again */
+    private volatile boolean lintAll = false;
+    /** When the user last edited a file, and how long it took to lint the files other than the focus last time */
+    private Instant lastEdit = Instant.EPOCH;
+    private long lintOthersMs = 0;
+    /** Don't wait longer than this for the user to stop typing before linting the files other than the focus */
+    private static final long MAX_LINT_DELAY_MS = 2000;
+
+    private void changed(URI uri) {
+        if (!FileStore.isJavaFile(uri)) return;
+        focus = uri;
+        if (!Objects.equals(lintedVersions.get(uri), FileStore.version(uri))) {
+            needsLint.add(uri);
+        }
+    }
+
+    /** The declarations in `uri`, without method bodies */
+    private static String signature(URI uri) {
+        return Parser.stub(Paths.get(uri)).replaceAll("\\s+", " ");
+    }
+
+    /** Open files that might refer to a class declared in `uri` */
+    private static List<URI> dependents(URI uri) {
+        var path = Paths.get(uri);
+        var className = path.getFileName().toString().replaceFirst("\\.java$", "");
+        var packageName = FileStore.packageName(path);
+        var result = new ArrayList<URI>();
+        for (var other : FileStore.activeDocuments()) {
+            if (other.equals(uri)) continue;
+            var samePackage = FileStore.packageName(Paths.get(other)).equals(packageName);
+            if (samePackage || FileStore.contents(other).contains(className)) {
+                result.add(other);
+            }
+        }
+        return result;
     }
 
     private static final Gson gson = new Gson();
@@ -61,19 +206,20 @@ class JavaLanguageServer extends LanguageServer {
         client.customNotification("java/endProgress", JsonNull.INSTANCE);
     }
 
-    private JavaCompilerService createCompiler() {
+    private JavaCompilerService createCompiler(JsonObject settings, JavaCompilerService previous) {
         Objects.requireNonNull(workspaceRoot, "Can't create compiler because workspaceRoot has not been initialized");
 
         javaStartProgress(new JavaStartProgressParams("Configure javac"));
         javaReportProgress(new JavaReportProgressParams("Finding source roots"));
 
-        var externalDependencies = externalDependencies();
-        var classPath = classPath();
-        var addExports = addExports();
+        var externalDependencies = externalDependencies(settings);
+        var classPath = classPath(settings);
+        var addExports = addExports(settings);
+        var maxCompilers = maxCompilers(settings);
         // If classpath is specified by the user, don't infer anything
         if (!classPath.isEmpty()) {
             javaEndProgress();
-            return new JavaCompilerService(classPath, Collections.emptySet(), addExports);
+            return createCompiler(previous, classPath, Collections.emptySet(), addExports, maxCompilers);
         }
         // Otherwise, combine inference with user-specified external dependencies
         else {
@@ -86,11 +232,21 @@ class JavaLanguageServer extends LanguageServer {
             var docPath = infer.buildDocPath();
 
             javaEndProgress();
-            return new JavaCompilerService(classPath, docPath, addExports);
+            return createCompiler(previous, classPath, docPath, addExports, maxCompilers);
         }
     }
 
-    private Set<String> externalDependencies() {
+    private static JavaCompilerService createCompiler(
+            JavaCompilerService previous,
+            Set<Path> classPath,
+            Set<Path> docPath,
+            Set<String> addExports,
+            int maxCompilers) {
+        if (previous == null) return new JavaCompilerService(classPath, docPath, addExports, maxCompilers);
+        return previous.reconfigure(classPath, docPath, addExports, maxCompilers);
+    }
+
+    private static Set<String> externalDependencies(JsonObject settings) {
         if (!settings.has("externalDependencies")) return Set.of();
         var array = settings.getAsJsonArray("externalDependencies");
         var strings = new HashSet<String>();
@@ -100,7 +256,7 @@ class JavaLanguageServer extends LanguageServer {
         return strings;
     }
 
-    private Set<Path> classPath() {
+    private static Set<Path> classPath(JsonObject settings) {
         if (!settings.has("classPath")) return Set.of();
         var array = settings.getAsJsonArray("classPath");
         var paths = new HashSet<Path>();
@@ -110,7 +266,7 @@ class JavaLanguageServer extends LanguageServer {
         return paths;
     }
 
-    private Set<String> addExports() {
+    private static Set<String> addExports(JsonObject settings) {
         if (!settings.has("addExports")) return Set.of();
         var array = settings.getAsJsonArray("addExports");
         var strings = new HashSet<String>();
@@ -120,10 +276,17 @@ class JavaLanguageServer extends LanguageServer {
         return strings;
     }
 
+    private static int maxCompilers(JsonObject settings) {
+        if (!settings.has("maxCompilers")) return JavaCompilerService.DEFAULT_COMPILERS;
+        return settings.get("maxCompilers").getAsInt();
+    }
+
     @Override
     public InitializeResult initialize(InitializeParams params) {
         this.workspaceRoot = Paths.get(params.rootUri);
         FileStore.setWorkspaceRoots(Set.of(Paths.get(params.rootUri)));
+        var referencesFile = DiskCache.workspace(Set.of(workspaceRoot)).resolve("references.idx");
+        indexer.execute(() -> referenceIndex.load(referencesFile));
 
         var c = new JsonObject();
         c.addProperty("textDocumentSync", 2); // Incremental
@@ -153,23 +316,61 @@ class JavaLanguageServer extends LanguageServer {
         return new InitializeResult(c);
     }
 
+    private static final String[] WATCH_GLOBS = {
+        "**/*.java",
+        "**/pom.xml",
+        "**/build.gradle",
+        "**/WORKSPACE",
+        "**/WORKSPACE.bazel",
+        "**/MODULE.bazel",
+        "**/BUILD",
+        "**/BUILD.bazel",
+        "**/*.bzl",
+    };
+
     @Override
     public void initialized() {
         // Register for didChangeWatchedFiles notifications
         var options = new JsonObject();
         var watchers = new JsonArray();
-        var watchJava = new JsonObject();
-        watchJava.addProperty("globPattern", "**/*.java");
-        watchers.add(watchJava);
+        for (var glob : WATCH_GLOBS) {
+            var watch = new JsonObject();
+            watch.addProperty("globPattern", glob);
+            watchers.add(watch);
+        }
         options.add("watchers", watchers);
         client.registerCapability("workspace/didChangeWatchedFiles", gson.toJsonTree(options));
     }
 
     @Override
-    public void shutdown() {}
+    public void shutdown() {
+        cancelIndexing();
+    }
 
     public JavaLanguageServer(LanguageClient client) {
         this.client = client;
+        BazelDeps.setListener(
+                new BazelDeps.Listener() {
+                    @Override
+                    public void started(String message) {
+                        javaStartProgress(new JavaStartProgressParams(message));
+                    }
+
+                    @Override
+                    public void finished() {
+                        javaEndProgress();
+                    }
+
+                    @Override
+                    public void updated() {
+                        // Until now, we've been using the class path from the last time we ran bazel query
+                        invalidateCompiler();
+                    }
+                });
+    }
+
+    private synchronized void invalidateCompiler() {
+        if (cacheCompiler != null) reconfigure(settings);
     }
 
     @Override
@@ -186,19 +387,25 @@ class JavaLanguageServer extends LanguageServer {
 
     @Override
     public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
-        // TODO update config when pom.xml changes
         for (var c : params.changes) {
+            if (c.uri.getScheme().equals("file") && InferConfig.isBuildFile(Paths.get(c.uri))) {
+                buildFilesChanged();
+                continue;
+            }
             if (!FileStore.isJavaFile(c.uri)) continue;
             var file = Paths.get(c.uri);
             switch (c.type) {
                 case FileChangeType.Created:
                     FileStore.externalCreate(file);
+                    indexSoon(List.of(c.uri));
                     break;
                 case FileChangeType.Changed:
                     FileStore.externalChange(file);
+                    indexSoon(List.of(c.uri));
                     break;
                 case FileChangeType.Deleted:
                     FileStore.externalDelete(file);
+                    referenceIndex.remove(c.uri);
                     break;
             }
         }
@@ -544,30 +751,18 @@ class JavaLanguageServer extends LanguageServer {
         LOG.info(String.format("...prune code that doesn't contain `%s`", name));
         var sources = new ArrayList<JavaFileObject>();
         for (var f : files) {
+            CancelToken.check();
             var pruned = Parser.parseFile(f).prune(name);
             sources.add(new SourceFileObject(f, pruned, Instant.EPOCH));
         }
         return sources;
     }
 
-    private Parser cacheParse;
-    private URI cacheParseFile = URI.create("file:///NONE");;
-    private int cacheParseVersion = -1;
-
-    private void updateCachedParse(URI file) {
-        if (file.equals(cacheParseFile) && FileStore.version(file) == cacheParseVersion) return;
-        LOG.info(String.format("Updating cached parse file to %s", file));
-        cacheParse = Parser.parseFile(file);
-        cacheParseFile = file;
-        cacheParseVersion = FileStore.version(file);
-    }
-
     @Override
     public List<SymbolInformation> documentSymbol(DocumentSymbolParams params) {
         var uri = params.textDocument.uri;
         if (!FileStore.isJavaFile(uri)) return List.of();
-        updateCachedParse(uri);
-        var infos = cacheParse.documentSymbols();
+        var infos = Parser.parseFile(uri).documentSymbols();
         return infos;
     }
 
@@ -576,16 +771,16 @@ class JavaLanguageServer extends LanguageServer {
         // TODO just create a blank code lens on every method, then resolve it async
         var uri = params.textDocument.uri;
         if (!FileStore.isJavaFile(uri)) return List.of();
-        updateCachedParse(uri);
-        var declarations = cacheParse.declarations();
+        var parse = Parser.parseFile(uri);
+        var declarations = parse.declarations();
         var result = new ArrayList<CodeLens>();
         for (var d : declarations) {
-            var range = cacheParse.range(d);
+            var range = parse.range(d);
             if (!range.isPresent()) continue;
             var className = Parser.className(d);
             var memberName = Parser.memberName(d);
             // If test class or method, add "Run Test" code lens
-            if (cacheParse.isTestClass(d)) {
+            if (parse.isTestClass(d)) {
                 var arguments = new JsonArray();
                 arguments.add(uri.toString());
                 arguments.add(className);
@@ -596,7 +791,7 @@ class JavaLanguageServer extends LanguageServer {
                 // TODO run all tests in file
                 // TODO run all tests in package
             }
-            if (cacheParse.isTestMethod(d)) {
+            if (parse.isTestMethod(d)) {
                 var arguments = new JsonArray();
                 arguments.add(uri.toString());
                 arguments.add(className);
@@ -617,11 +812,7 @@ class JavaLanguageServer extends LanguageServer {
                 lens = new CodeLens(range.get(), command, null);
                 result.add(lens);
             }
-            if (!cacheParse.isTestMethod(d)
-                    && !cacheParse.isTestClass(d)
-                    && !cacheParse.isCalledByTestFramework(d)
-                    && !cacheParse.isOverride(d)
-                    && !cacheParse.isMainMethod(d)) {
+            if (hasReferencesLens(parse, d)) {
                 // Unresolved "_ references" code lens
                 var start = range.get().start;
                 var line = start.line;
@@ -638,6 +829,14 @@ class JavaLanguageServer extends LanguageServer {
         return result;
     }
 
+    private static boolean hasReferencesLens(Parser parse, TreePath d) {
+        return !parse.isTestMethod(d)
+                && !parse.isTestClass(d)
+                && !parse.isCalledByTestFramework(d)
+                && !parse.isOverride(d)
+                && !parse.isMainMethod(d);
+    }
+
     @Override
     public CodeLens resolveCodeLens(CodeLens unresolved) {
         // Unpack data
@@ -649,11 +848,10 @@ class JavaLanguageServer extends LanguageServer {
         var line = data.get(2).getAsInt() + 1;
         var character = data.get(3).getAsInt() + 1;
         // Update command
-        var count = countReferences(uri, line, character);
+        var count = countLensReferences(uri, line, character);
         String title;
         if (count == -1) title = "? references";
         else if (count == 1) title = "1 reference";
-        else if (count == TOO_EXPENSIVE) title = "Find references";
         else title = String.format("%d references", count);
         var arguments = new JsonArray();
         arguments.add(uri.toString());
@@ -664,76 +862,243 @@ class JavaLanguageServer extends LanguageServer {
         return unresolved;
     }
 
-    private Cache<Ptr, Integer> cacheCountReferences = new Cache<>();
-    private static final int TOO_EXPENSIVE = 100;
+    private final ReferenceIndex referenceIndex = new ReferenceIndex();
+    /** Index this many files at a time, so counting a declaration with a huge fan-in doesn't run out of memory */
+    private static final int INDEX_BATCH_SIZE = 50;
+
+    /** Loads the reference index, and indexes the files in needsIndex, in the background */
+    private final ExecutorService indexer =
+            Executors.newSingleThreadExecutor(
+                    task -> {
+                        var thread = new Thread(task, "index-references");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+    /** Files whose references need to be indexed, in the order they were asked for */
+    private final Set<URI> needsIndex = new LinkedHashSet<>();
+    /** The token of the indexing job that is running or scheduled, or null if there isn't one */
+    private CancelToken indexing;
+
+    /** Index the references in `uris` in the background, if they have changed since they were last indexed */
+    private void indexSoon(Collection<URI> uris) {
+        var stale = referenceIndex.stale(uris);
+        if (stale.isEmpty()) return;
+        synchronized (needsIndex) {
+            needsIndex.addAll(stale.keySet());
+        }
+        startIndexing();
+    }
 
-    private int countReferences(URI toUri, int toLine, int toColumn) {
-        // Count within-file references
-        Optional<Element> toEl;
-        Ptr toPtr;
-        int count;
-        try (var compile = compiler().compileFile(toUri)) {
-            // Find the element we want to count references to
-            toEl = compile.element(toUri, toLine, toColumn);
-            if (!toEl.isPresent()) {
-                LOG.warning("No element at code lens!");
-                return -1;
+    /** Start a job to index needsIndex, unless one is already running */
+    private void startIndexing() {
+        var token = new CancelToken();
+        synchronized (needsIndex) {
+            if (indexing != null || needsIndex.isEmpty()) return;
+            indexing = token;
+        }
+        indexer.execute(() -> token.run(this::indexReferences));
+    }
+
+    /** Stop indexing after the current batch; the files that haven't been indexed yet will be asked for again */
+    private void cancelIndexing() {
+        synchronized (needsIndex) {
+            if (indexing != null) indexing.cancel();
+            needsIndex.clear();
+        }
+    }
+
+    /** Index the files in needsIndex, in batches, until there are none left or the job is cancelled */
+    private void indexReferences() {
+        var started = Instant.now();
+        int done = 0, indexed = 0;
+        var showProgress = false;
+        try {
+            while (true) {
+                List<URI> next;
+                int remaining;
+                synchronized (needsIndex) {
+                    if (needsIndex.isEmpty()) break;
+                    next = new ArrayList<>();
+                    for (var uri : needsIndex) {
+                        next.add(uri);
+                        if (next.size() == INDEX_BATCH_SIZE) break;
+                    }
+                    needsIndex.removeAll(next);
+                    remaining = needsIndex.size();
+                }
+                // Don't show progress for a save or an external change, which is a handful of files
+                if (!showProgress && remaining > 0) {
+                    showProgress = true;
+                    javaStartProgress(new JavaStartProgressParams("Index references"));
+                }
+                indexed += indexBatch(next);
+                done += next.size();
+                if (showProgress) {
+                    var message = String.format("%d/%d files", done, done + remaining);
+                    javaReportProgress(new JavaReportProgressParams(message));
+                }
             }
-            toPtr = new Ptr(toEl.get());
-            count = compile.references(toUri, toLine, toColumn).map(List::size).orElse(0);
-        }
-        var crossFile = countCrossFileReferences(toUri, toLine, toColumn, toEl.get(), toPtr);
-        if (crossFile == TOO_EXPENSIVE) return TOO_EXPENSIVE;
-        return count + crossFile;
-    }
-
-    private int countCrossFileReferences(URI toUri, int toLine, int toColumn, Element toEl, Ptr toPtr) {
-        // Identify all files that *might* contain references to toEl
-        LOG.info(String.format("Count cross-file references to `%s`...", toPtr));
-        var fromUris = Parser.potentialReferences(toEl);
-        fromUris.remove(toUri);
-        // If it's too expensive to compute the code lens
-        if (fromUris.size() > 100) {
-            LOG.info(
-                    String.format(
-                            "...there are %d potential references, which is too expensive to compile",
-                            fromUris.size()));
-            return TOO_EXPENSIVE;
-        }
-        // Figure out what files need to be updated
-        var todo = new HashSet<URI>();
-        for (var fromUri : fromUris) {
-            if (cacheCountReferences.needs(Paths.get(fromUri), toPtr)) {
-                todo.add(fromUri);
+            var elapsed = Duration.between(started, Instant.now()).toMillis();
+            LOG.info(String.format("...indexed references in %d files in %d ms", indexed, elapsed));
+        } catch (RuntimeException e) {
+            if (!CancelToken.isCancellation(e)) throw e;
+            LOG.info(String.format("...stopped indexing references after %d files", indexed));
+        } finally {
+            synchronized (needsIndex) {
+                indexing = null;
             }
+            if (showProgress) javaEndProgress();
+            referenceIndex.save();
+        }
+        // Files may have been asked for after the loop saw needsIndex was empty
+        startIndexing();
+    }
+
+    /** Index the files in `uris` that are stale, and return how many there were */
+    private int indexBatch(List<URI> uris) {
+        var stale = referenceIndex.stale(uris);
+        if (stale.isEmpty()) return 0;
+        var todo = new ArrayList<URI>(stale.keySet());
+        try (var batch = compiler().compileUris(todo)) {
+            for (var uri : todo) {
+                referenceIndex.update(uri, stale.get(uri), batch.countReferences(uri));
+            }
+            return todo.size();
+        } catch (RuntimeException e) {
+            if (CancelToken.isCancellation(e)) throw e;
+            // Probably a file was deleted while we were compiling it, the rest of the files can still be indexed
+            LOG.log(Level.WARNING, "Failed to index references in " + todo.size() + " files", e);
+            return 0;
+        }
+    }
+
+    /**
+     * The declaration under a "_ references" code lens, and how to find the files that might refer to it. The files are
+     * found again on each resolve, because other files can start referring to the declaration at any time.
+     */
+    private static class LensTarget {
+        final Set<Ptr> ptrs;
+        final Parser.PotentialReferences fromFiles;
+
+        LensTarget(Set<Ptr> ptrs, Parser.PotentialReferences fromFiles) {
+            this.ptrs = ptrs;
+            this.fromFiles = fromFiles;
+        }
+    }
+
+    /**
+     * cacheLensTargets[file, modified] is the target of every "_ references" code lens in file, keyed by "line:column".
+     * Computing a target compiles the file, so it's done for all the lenses in a file on the first resolve, and
+     * concurrent resolves for the same file wait for the same result.
+     */
+    private final Cache<Instant, CompletableFuture<Map<String, LensTarget>>> cacheLensTargets = new Cache<>(100);
+
+    /**
+     * Count the references to the declaration under a code lens, or return -1 if the files that might refer to it are
+     * still being indexed in the background. The client asks again the next time it refreshes its code lenses.
+     */
+    private int countLensReferences(URI toUri, int toLine, int toColumn) {
+        var target = lensTargets(toUri).get(toLine + ":" + toColumn);
+        if (target == null) {
+            LOG.warning(String.format("No declaration at code lens %s(%d,%d)", toUri.getPath(), toLine, toColumn));
+            return -1;
         }
-        // Update the cache
-        if (!todo.isEmpty()) {
-            todo.add(toUri);
-            LOG.info(String.format("...compile %d files", todo.size()));
-            var eraseCode = pruneWord(todo, toEl);
-            var countByFile = new HashMap<URI, Integer>();
-            try (var batch = compiler().compileBatch(eraseCode)) {
-                var fromPaths = batch.references(toUri, toLine, toColumn).orElse(List.of());
-                for (var fromPath : fromPaths) {
-                    var fromUri = fromPath.getCompilationUnit().getSourceFile().toUri();
-                    var newCount = countByFile.getOrDefault(fromUri, 0) + 1;
-                    countByFile.put(fromUri, newCount);
+        // The count is exact once every file that might refer to the declaration, or did when it was indexed, is indexed
+        var fromUris = target.fromFiles.find();
+        fromUris.add(toUri);
+        fromUris.addAll(referenceIndex.referringFiles(target.ptrs));
+        var stale = referenceIndex.stale(fromUris);
+        if (!stale.isEmpty()) {
+            LOG.info(String.format("...waiting for %d files to be indexed", stale.size()));
+            indexSoon(stale.keySet());
+            return -1;
+        }
+        return referenceIndex.count(target.ptrs);
+    }
+
+    /** The target of every "_ references" code lens in the current version of `file`, computed once per version */
+    private Map<String, LensTarget> lensTargets(URI file) {
+        var path = Paths.get(file);
+        while (true) {
+            var generation = Cache.generation(path);
+            var modified = FileStore.modified(path);
+            CompletableFuture<Map<String, LensTarget>> targets, mine = new CompletableFuture<>();
+            synchronized (cacheLensTargets) {
+                targets = cacheLensTargets.get(path, modified);
+                if (targets == null) {
+                    targets = mine;
+                    cacheLensTargets.load(path, modified, generation, mine);
+                }
+            }
+            if (targets == mine) {
+                try {
+                    mine.complete(computeLensTargets(file, modified));
+                } catch (RuntimeException e) {
+                    // Don't leave a failed or cancelled result in the cache; the next resolve will try again
+                    synchronized (cacheLensTargets) {
+                        if (cacheLensTargets.get(path, modified) == mine) {
+                            cacheLensTargets.load(path, modified, generation, null);
+                        }
+                    }
+                    mine.completeExceptionally(e);
+                    throw e;
                 }
             }
-            for (var fromUri : todo) {
-                var count = countByFile.getOrDefault(fromUri, 0);
-                // TODO consider not caching if fromUri contains errors
-                cacheCountReferences.load(Paths.get(fromUri), toPtr, count);
+            try {
+                return await(targets);
+            } catch (RuntimeException e) {
+                if (!CancelToken.isCancellation(e)) throw e;
+                // The resolve that was computing the targets was cancelled, so if we weren't, compute them ourselves
+                CancelToken.check();
             }
-            LOG.info(String.format("...found cross-file references in %d files", countByFile.size()));
         }
-        // Sum up the count
-        var count = 0;
-        for (var fromUri : fromUris) {
-            count += cacheCountReferences.get(Paths.get(fromUri), toPtr);
+    }
+
+    /** Wait for `future`, but stop waiting if the request on this thread is cancelled */
+    private static <T> T await(CompletableFuture<T> future) {
+        while (true) {
+            CancelToken.check();
+            try {
+                return future.get(AWAIT_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                continue;
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                var cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new RuntimeException(cause);
+            }
         }
-        return count;
+    }
+
+    /** How often a request that is waiting for another request checks if it has been cancelled */
+    private static final long AWAIT_POLL_MS = 50;
+
+    /** Find the target of every "_ references" code lens in `file`, and index every file that might refer to them */
+    private Map<String, LensTarget> computeLensTargets(URI file, Instant modified) {
+        var parse = Parser.parseFile(file);
+        var targets = new HashMap<String, LensTarget>();
+        var allFromUris = new LinkedHashSet<URI>();
+        try (var compile = compiler().compileFile(file)) {
+            for (var d : parse.declarations()) {
+                var range = parse.range(d);
+                if (!range.isPresent() || !hasReferencesLens(parse, d)) continue;
+                var line = range.get().start.line + 1;
+                var column = range.get().start.character + 1;
+                var toEl = compile.element(file, line, column);
+                if (!toEl.isPresent()) continue;
+                var fromFiles = Parser.PotentialReferences.of(toEl.get());
+                allFromUris.addAll(fromFiles.find());
+                targets.put(line + ":" + column, new LensTarget(compile.referencePtrs(toEl.get()), fromFiles));
+            }
+            // We have compiled the declaring file in full, so index it while we're here
+            referenceIndex.update(file, modified, compile.countReferences(file));
+        }
+        LOG.info(String.format("Found %d code lens targets in %s", targets.size(), file.getPath()));
+        // Index every file that might refer to any lens in one background job, instead of one job per lens
+        indexSoon(allFromUris);
+        return targets;
     }
 
     @Override
@@ -818,8 +1183,7 @@ class JavaLanguageServer extends LanguageServer {
 
     @Override
     public List<FoldingRange> foldingRange(FoldingRangeParams params) {
-        updateCachedParse(params.textDocument.uri);
-        return cacheParse.foldingRanges();
+        return Parser.parseFile(params.textDocument.uri).foldingRanges();
     }
 
     @Override
@@ -837,15 +1201,16 @@ class JavaLanguageServer extends LanguageServer {
         FileStore.open(params);
         if (FileStore.isJavaFile(params.textDocument.uri)) {
             // So that subsequent documentSymbol and codeLens requests will be faster
-            updateCachedParse(params.textDocument.uri);
-            uncheckedChanges = true;
+            Parser.parseFile(params.textDocument.uri);
+            changed(params.textDocument.uri);
         }
     }
 
     @Override
     public void didChangeTextDocument(DidChangeTextDocumentParams params) {
         FileStore.change(params);
-        uncheckedChanges = true;
+        lastEdit = Instant.now();
+        changed(params.textDocument.uri);
     }
 
     @Override
@@ -855,25 +1220,58 @@ class JavaLanguageServer extends LanguageServer {
         if (FileStore.isJavaFile(params.textDocument.uri)) {
             // Clear diagnostics
             client.publishDiagnostics(new PublishDiagnosticsParams(params.textDocument.uri, List.of()));
+            needsLint.remove(params.textDocument.uri);
+            lintedVersions.remove(params.textDocument.uri);
+            lintedSignatures.remove(params.textDocument.uri);
         }
     }
 
     @Override
     public void didSaveTextDocument(DidSaveTextDocumentParams params) {
         if (FileStore.isJavaFile(params.textDocument.uri)) {
-            // Re-lint all active documents
-            lint(FileStore.activeDocuments());
+            // Files that aren't open may have changed too, so re-check the files that depend on this one
+            needsLint.addAll(dependents(params.textDocument.uri));
+            // If the file hasn't been linted since it was last changed, index its references in the background
+            indexSoon(List.of(params.textDocument.uri));
         }
     }
 
-    private boolean uncheckedChanges = false;
+    @Override
+    public Runnable snapshot(Runnable request) {
+        var documents = FileStore.snapshot();
+        return () -> FileStore.withSnapshot(documents, request);
+    }
 
     @Override
     public void doAsyncWork() {
-        if (uncheckedChanges) {
-            // Re-lint all active documents
-            lint(FileStore.activeDocuments());
+        if (lintAll) {
+            lintAll = false;
+            needsLint.addAll(FileStore.activeDocuments());
+        }
+        needsLint.retainAll(FileStore.activeDocuments());
+        if (needsLint.isEmpty()) return;
+        // Lint the file the user is editing by itself, so its errors show up as soon as possible
+        if (needsLint.contains(focus)) {
+            var before = lintedSignatures.get(focus);
+            if (!lint(List.of(focus), false)) return;
+            // If the declarations in focus changed, files that use them might have new errors
+            var after = lintedSignatures.get(focus);
+            if (before != null && !before.equals(after)) {
+                needsLint.addAll(dependents(focus));
+            }
+            return;
         }
+        // Lint everything else once the user has stopped typing for about as long as that takes
+        var idle = Duration.between(lastEdit, Instant.now()).toMillis();
+        if (idle < Math.min(lintOthersMs, MAX_LINT_DELAY_MS)) return;
+        var started = Instant.now();
+        if (!lint(new ArrayList<>(needsLint), false)) return;
+        lintOthersMs = Duration.between(started, Instant.now()).toMillis();
+    }
+
+    @Override
+    public boolean hasAsyncWork() {
+        return lintAll || !needsLint.isEmpty();
     }
 
     private static final Logger LOG = Logger.getLogger("main");
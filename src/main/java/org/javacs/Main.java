@@ -1,5 +1,8 @@
 package org.javacs;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,7 +28,9 @@ public class Main {
             // Logger.getLogger("").addHandler(new FileHandler("javacs.%u.log", false));
             setRootFormat();
 
-            LSP.connect(JavaLanguageServer::new, System.in, System.out);
+            var in = new FileInputStream(FileDescriptor.in).getChannel();
+            var out = new FileOutputStream(FileDescriptor.out).getChannel();
+            LSP.connect(JavaLanguageServer::new, in, out);
         } catch (Throwable t) {
             LOG.log(Level.SEVERE, t.getMessage(), t);
 
@@ -0,0 +1,713 @@
+package org.javacs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+/**
+ * MavenResolver finds the dependencies of a Maven project by reading pom.xml files from the workspace and the local
+ * repository, instead of running `mvn dependency:list`, which takes several seconds just to start. It understands
+ * parent POMs, properties, dependencyManagement, imported BOMs, modules, scopes, optional dependencies and exclusions,
+ * and picks versions the way Maven does, nearest declaration first. Profiles are only applied if they are
+ * activeByDefault. If anything is missing from the local repository, resolution fails and the caller should fall back
+ * to running mvn, which can download it.
+ */
+class MavenResolver {
+    private static final int MAGIC = 0x4a4d564e, VERSION = 1;
+
+    /**
+     * Find the class path, or the doc path if `sources` is true, of the project in `pomXml`. The result is saved in
+     * DiskCache.root(), and reused until one of the POM files in the workspace changes. Returns empty if the class path
+     * can't be resolved from `repository` alone.
+     */
+    static Optional<Set<Path>> resolve(Path pomXml, Path repository, boolean sources) {
+        var started = Instant.now();
+        pomXml = pomXml.toAbsolutePath().normalize();
+        repository = repository.toAbsolutePath().normalize();
+        var key = DiskCache.hash(pomXml + File.pathSeparator + repository);
+        var cacheFile = DiskCache.root().resolve("maven").resolve(key + ".deps");
+        var saved = Saved.load(cacheFile);
+        if (saved != null && saved.isValid()) {
+            var result = sources ? saved.docPath : saved.classPath;
+            if (result != null) {
+                LOG.info(String.format("Loaded %d maven dependencies of %s from %s", result.size(), pomXml, cacheFile));
+                return Optional.of(result);
+            }
+        }
+        var resolver = new MavenResolver(repository);
+        List<Dependency> dependencies;
+        try {
+            dependencies = resolver.resolveWithModules(pomXml);
+        } catch (MissingException e) {
+            LOG.info(String.format("Couldn't resolve maven dependencies of %s offline: %s", pomXml, e.getMessage()));
+            return Optional.empty();
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Couldn't resolve maven dependencies of " + pomXml + " without running mvn", e);
+            return Optional.empty();
+        }
+        var classPath = new LinkedHashSet<Path>();
+        var docPath = new LinkedHashSet<Path>();
+        var missingSources = false;
+        for (var d : dependencies) {
+            var jar = resolver.jar(d);
+            if (jar == null) continue;
+            classPath.add(jar);
+            var source = resolver.sources(d);
+            if (source == null) continue;
+            if (Files.exists(source)) docPath.add(source);
+            else missingSources = true;
+        }
+        var docPathSoFar = saved != null && saved.isValid() ? saved.docPath : null;
+        var next = new Saved(cacheFile, resolver.inputs, classPath, docPathSoFar);
+        if (sources && next.docPath == null) {
+            if (missingSources) {
+                // Source jars are often missing from the local repository, let mvn download the ones that exist
+                LOG.info("...some source jars are missing, running mvn to download them");
+                next.docPath = InferConfig.mvnDependencies(pomXml, "dependency:sources");
+            } else {
+                next.docPath = docPath;
+            }
+        }
+        next.save();
+        var result = sources ? next.docPath : next.classPath;
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("Resolved %d maven dependencies of %s in %d ms", result.size(), pomXml, elapsed));
+        return Optional.of(result);
+    }
+
+    private final Path repository;
+    /** POM files that can change, which are everything outside the repository and snapshots */
+    private final Set<Path> inputs = new TreeSet<>();
+
+    private final Map<Path, Model> models = new HashMap<>();
+    private final Map<Path, Project> projects = new HashMap<>();
+
+    MavenResolver(Path repository) {
+        this.repository = repository;
+    }
+
+    /** Thrown when something we need isn't in the local repository */
+    private static class MissingException extends RuntimeException {
+        MissingException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Dependency {
+        String groupId, artifactId, version, type, classifier, scope, systemPath;
+        boolean optional;
+        /** exclusions are "groupId:artifactId", either of which can be "*" */
+        Set<String> exclusions = new HashSet<>();
+
+        /** Dependencies with the same key are the same artifact, possibly at different versions */
+        String key() {
+            return String.join(":", groupId, artifactId, type(), classifier == null ? "" : classifier);
+        }
+
+        String type() {
+            return type == null ? "jar" : type;
+        }
+
+        String scope() {
+            return scope == null ? "compile" : scope;
+        }
+
+        Dependency copy() {
+            var d = new Dependency();
+            d.groupId = groupId;
+            d.artifactId = artifactId;
+            d.version = version;
+            d.type = type;
+            d.classifier = classifier;
+            d.scope = scope;
+            d.systemPath = systemPath;
+            d.optional = optional;
+            d.exclusions = new HashSet<>(exclusions);
+            return d;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(":", groupId, artifactId, type(), String.valueOf(version));
+        }
+    }
+
+    /** A POM file merged with its parents, before properties are interpolated */
+    private static class Model {
+        Path file;
+        String groupId, artifactId, version, packaging;
+        String parentGroupId, parentArtifactId, parentVersion;
+        String relocatedGroupId, relocatedArtifactId, relocatedVersion;
+        Map<String, String> properties = new LinkedHashMap<>();
+        Map<String, Dependency> managed = new LinkedHashMap<>();
+        Map<String, Dependency> dependencies = new LinkedHashMap<>();
+        List<String> modules = new ArrayList<>();
+    }
+
+    /** A POM file with properties, imported BOMs and dependencyManagement applied */
+    private static class Project {
+        Path file;
+        String groupId, artifactId, version;
+        Dependency relocation;
+        Map<String, Dependency> managed = new LinkedHashMap<>();
+        List<Dependency> dependencies = new ArrayList<>();
+        List<Path> modules = new ArrayList<>();
+
+        /** Apply this project's dependencyManagement to a dependency found somewhere below it */
+        Dependency manage(Dependency d) {
+            var m = managed.get(d.key());
+            if (m == null) return d;
+            var result = d.copy();
+            if (m.version != null) result.version = m.version;
+            if (m.scope != null && d.scope == null) result.scope = m.scope;
+            result.exclusions.addAll(m.exclusions);
+            return result;
+        }
+    }
+
+    /** Resolve the project in `pomXml` and each of its modules, skipping dependencies between modules */
+    List<Dependency> resolveWithModules(Path pomXml) {
+        var all = new ArrayList<Project>();
+        collectModules(pomXml, all);
+        var reactor = new HashSet<String>();
+        for (var p : all) {
+            reactor.add(p.groupId + ":" + p.artifactId);
+        }
+        var result = new ArrayList<Dependency>();
+        var seen = new HashSet<String>();
+        for (var p : all) {
+            for (var d : resolve(p, reactor)) {
+                if (seen.add(d.key() + ":" + d.version)) result.add(d);
+            }
+        }
+        return result;
+    }
+
+    private void collectModules(Path pomXml, List<Project> all) {
+        var project = project(pomXml);
+        all.add(project);
+        for (var module : project.modules) {
+            collectModules(module, all);
+        }
+    }
+
+    /** Breadth-first search of the dependency graph, so the nearest version of each artifact wins, like in Maven */
+    private List<Dependency> resolve(Project root, Set<String> reactor) {
+        class Node {
+            final Dependency dependency;
+            final Set<String> exclusions;
+
+            Node(Dependency dependency, Set<String> exclusions) {
+                this.dependency = dependency;
+                this.exclusions = exclusions;
+            }
+        }
+        var result = new ArrayList<Dependency>();
+        var found = new HashSet<String>();
+        var queue = new ArrayDeque<Node>();
+        for (var d : root.dependencies) {
+            queue.add(new Node(d, Set.of()));
+        }
+        while (!queue.isEmpty()) {
+            var next = queue.poll();
+            var d = next.dependency;
+            if (!found.add(d.key())) continue;
+            // Other modules of this project are in the workspace, and their dependencies are resolved separately
+            if (reactor.contains(d.groupId + ":" + d.artifactId)) continue;
+            if (d.scope().equals("system")) {
+                result.add(d);
+                continue;
+            }
+            if (d.version == null) throw new MissingException("No version for " + d);
+            var pom = dependencyPom(d);
+            if (pom != null && pom.relocation != null) {
+                d = relocate(d, pom.relocation);
+                pom = dependencyPom(d);
+            }
+            result.add(d);
+            if (pom == null) continue;
+            var exclusions = new HashSet<>(next.exclusions);
+            exclusions.addAll(d.exclusions);
+            for (var t : pom.dependencies) {
+                if (t.optional) continue;
+                if (!t.scope().equals("compile") && !t.scope().equals("runtime")) continue;
+                if (isExcluded(exclusions, t)) continue;
+                queue.add(new Node(root.manage(t), exclusions));
+            }
+        }
+        return result;
+    }
+
+    private static boolean isExcluded(Set<String> exclusions, Dependency d) {
+        for (var e : exclusions) {
+            var parts = e.split(":");
+            var group = parts[0];
+            var artifact = parts.length > 1 ? parts[1] : "*";
+            var matchesGroup = group.equals("*") || group.equals(d.groupId);
+            var matchesArtifact = artifact.equals("*") || artifact.equals(d.artifactId);
+            if (matchesGroup && matchesArtifact) return true;
+        }
+        return false;
+    }
+
+    private Dependency relocate(Dependency d, Dependency relocation) {
+        var result = d.copy();
+        if (relocation.groupId != null) result.groupId = relocation.groupId;
+        if (relocation.artifactId != null) result.artifactId = relocation.artifactId;
+        if (relocation.version != null) result.version = relocation.version;
+        LOG.info(String.format("...%s is relocated to %s", d, result));
+        return result;
+    }
+
+    /** The POM of `d`, or null if the repository has the jar but no POM, which Maven treats as no dependencies */
+    private Project dependencyPom(Dependency d) {
+        checkVersion(d);
+        var pom = pom(d.groupId, d.artifactId, d.version);
+        if (Files.exists(pom)) return project(pom);
+        if (jar(d) == null) throw new MissingException(pom + " does not exist");
+        LOG.warning(String.format("...the POM for %s is missing, no dependency information available", d));
+        return null;
+    }
+
+    /** The file to put on the class path for `d`, or null if it doesn't have one */
+    Path jar(Dependency d) {
+        if (d.scope().equals("system")) {
+            if (d.systemPath == null) throw new MissingException("No systemPath for " + d);
+            var path = Paths.get(d.systemPath);
+            if (!Files.exists(path)) throw new MissingException(path + " does not exist");
+            return path;
+        }
+        String classifier;
+        switch (d.type()) {
+            case "pom":
+                return null;
+            case "test-jar":
+                classifier = d.classifier == null ? "tests" : d.classifier;
+                break;
+            case "jar":
+            case "bundle":
+            case "maven-plugin":
+            case "ejb":
+                classifier = d.classifier;
+                break;
+            default:
+                LOG.info(String.format("...skipping %s, which isn't a jar", d));
+                return null;
+        }
+        checkVersion(d);
+        var name = d.artifactId + "-" + d.version + (classifier == null ? "" : "-" + classifier) + ".jar";
+        var jar = artifactDirectory(d.groupId, d.artifactId, d.version).resolve(name);
+        if (!Files.exists(jar)) throw new MissingException(jar + " does not exist");
+        return jar;
+    }
+
+    /** The source jar of `d`, which may not exist, or null if `d` can't have one */
+    Path sources(Dependency d) {
+        if (d.scope().equals("system") || d.type().equals("pom")) return null;
+        return artifactDirectory(d.groupId, d.artifactId, d.version)
+                .resolve(d.artifactId + "-" + d.version + "-sources.jar");
+    }
+
+    private static void checkVersion(Dependency d) {
+        var v = d.version;
+        if (v.startsWith("[") || v.startsWith("(") || v.equals("LATEST") || v.equals("RELEASE") || v.contains("${")) {
+            throw new MissingException("Can't resolve version " + v + " of " + d + " offline");
+        }
+    }
+
+    private Path artifactDirectory(String groupId, String artifactId, String version) {
+        return repository.resolve(groupId.replace('.', File.separatorChar)).resolve(artifactId).resolve(version);
+    }
+
+    private Path pom(String groupId, String artifactId, String version) {
+        return artifactDirectory(groupId, artifactId, version).resolve(artifactId + "-" + version + ".pom");
+    }
+
+    private Project project(Path pomXml) {
+        pomXml = pomXml.toAbsolutePath().normalize();
+        var cached = projects.get(pomXml);
+        if (cached != null) return cached;
+        var model = model(pomXml);
+        var project = new Project();
+        project.file = pomXml;
+        // Interpolate properties
+        var properties = new HashMap<>(model.properties);
+        for (var prefix : new String[] {"project.", "pom.", ""}) {
+            putIfNotNull(properties, prefix + "groupId", model.groupId);
+            putIfNotNull(properties, prefix + "artifactId", model.artifactId);
+            putIfNotNull(properties, prefix + "version", model.version);
+            putIfNotNull(properties, prefix + "packaging", model.packaging);
+            putIfNotNull(properties, prefix + "parent.groupId", model.parentGroupId);
+            putIfNotNull(properties, prefix + "parent.artifactId", model.parentArtifactId);
+            putIfNotNull(properties, prefix + "parent.version", model.parentVersion);
+        }
+        var basedir = pomXml.getParent().toString();
+        properties.put("basedir", basedir);
+        properties.put("project.basedir", basedir);
+        properties.put("settings.localRepository", repository.toString());
+        project.groupId = interpolate(model.groupId, properties);
+        project.artifactId = interpolate(model.artifactId, properties);
+        project.version = interpolate(model.version, properties);
+        if (model.relocatedGroupId != null || model.relocatedArtifactId != null || model.relocatedVersion != null) {
+            project.relocation = new Dependency();
+            project.relocation.groupId = interpolate(model.relocatedGroupId, properties);
+            project.relocation.artifactId = interpolate(model.relocatedArtifactId, properties);
+            project.relocation.version = interpolate(model.relocatedVersion, properties);
+        }
+        // Apply dependencyManagement, including imported BOMs, which come after explicitly managed dependencies
+        var imports = new ArrayList<Dependency>();
+        for (var m : model.managed.values()) {
+            var d = interpolate(m, properties);
+            if (d.type().equals("pom") && "import".equals(d.scope)) {
+                imports.add(d);
+            } else {
+                project.managed.put(d.key(), d);
+            }
+        }
+        for (var i : imports) {
+            if (i.version == null) throw new MissingException("No version for " + i);
+            checkVersion(i);
+            var bom = pom(i.groupId, i.artifactId, i.version);
+            if (!Files.exists(bom)) throw new MissingException(bom + " does not exist");
+            for (var m : project(bom).managed.values()) {
+                project.managed.putIfAbsent(m.key(), m);
+            }
+        }
+        for (var raw : model.dependencies.values()) {
+            var d = interpolate(raw, properties);
+            var m = project.managed.get(d.key());
+            if (m != null) {
+                if (d.version == null) d.version = m.version;
+                if (d.scope == null) d.scope = m.scope;
+                if (d.systemPath == null) d.systemPath = m.systemPath;
+                d.exclusions.addAll(m.exclusions);
+            }
+            project.dependencies.add(d);
+        }
+        for (var module : model.modules) {
+            var path = pomXml.resolveSibling(interpolate(module, properties)).normalize();
+            if (Files.isDirectory(path)) path = path.resolve("pom.xml");
+            project.modules.add(path);
+        }
+        projects.put(pomXml, project);
+        return project;
+    }
+
+    private static void putIfNotNull(Map<String, String> properties, String key, String value) {
+        if (value != null) properties.putIfAbsent(key, value);
+    }
+
+    private Model model(Path pomXml) {
+        var cached = models.get(pomXml);
+        if (cached != null) return cached;
+        if (!Files.exists(pomXml)) throw new MissingException(pomXml + " does not exist");
+        if (!pomXml.startsWith(repository) || pomXml.getFileName().toString().contains("-SNAPSHOT")) {
+            inputs.add(pomXml);
+        }
+        var xml = parseXml(pomXml);
+        var model = new Model();
+        model.file = pomXml;
+        // Start with the parent, and let this POM override it
+        var parent = child(xml, "parent");
+        if (parent != null) {
+            model.parentGroupId = text(parent, "groupId");
+            model.parentArtifactId = text(parent, "artifactId");
+            model.parentVersion = text(parent, "version");
+            var parentModel = model(parentPom(pomXml, parent));
+            model.groupId = parentModel.groupId;
+            model.version = parentModel.version;
+            model.properties.putAll(parentModel.properties);
+            model.managed.putAll(parentModel.managed);
+            model.dependencies.putAll(parentModel.dependencies);
+        }
+        model.groupId = textOr(xml, "groupId", model.groupId);
+        model.artifactId = text(xml, "artifactId");
+        model.version = textOr(xml, "version", model.version);
+        model.packaging = textOr(xml, "packaging", "jar");
+        readContents(xml, model);
+        for (var profile : children(child(xml, "profiles"), "profile")) {
+            var activation = child(profile, "activation");
+            if (activation != null && "true".equals(text(activation, "activeByDefault"))) {
+                readContents(profile, model);
+            }
+        }
+        for (var m : children(child(xml, "modules"), "module")) {
+            model.modules.add(m.getTextContent().trim());
+        }
+        var relocation = child(child(xml, "distributionManagement"), "relocation");
+        if (relocation != null) {
+            model.relocatedGroupId = text(relocation, "groupId");
+            model.relocatedArtifactId = text(relocation, "artifactId");
+            model.relocatedVersion = text(relocation, "version");
+        }
+        models.put(pomXml, model);
+        return model;
+    }
+
+    /** Read the parts of a project that can also appear in a profile */
+    private static void readContents(Element xml, Model model) {
+        for (var p : children(child(xml, "properties"))) {
+            model.properties.put(p.getTagName(), p.getTextContent().trim());
+        }
+        for (var d : children(child(child(xml, "dependencyManagement"), "dependencies"), "dependency")) {
+            var dependency = readDependency(d);
+            model.managed.put(dependency.key(), dependency);
+        }
+        for (var d : children(child(xml, "dependencies"), "dependency")) {
+            var dependency = readDependency(d);
+            model.dependencies.put(dependency.key(), dependency);
+        }
+    }
+
+    /** Maven looks for the parent in relativePath, which defaults to ../pom.xml, and then in the repository */
+    private Path parentPom(Path pomXml, Element parent) {
+        var groupId = text(parent, "groupId");
+        var artifactId = text(parent, "artifactId");
+        var version = text(parent, "version");
+        var relativePath = textOr(parent, "relativePath", "../pom.xml");
+        if (!relativePath.isEmpty()) {
+            var local = pomXml.resolveSibling(relativePath).normalize();
+            if (Files.isDirectory(local)) local = local.resolve("pom.xml");
+            if (Files.exists(local)) {
+                var xml = parseXml(local);
+                var localParent = child(xml, "parent");
+                var localGroupId = textOr(xml, "groupId", localParent == null ? null : text(localParent, "groupId"));
+                if (artifactId.equals(text(xml, "artifactId")) && groupId.equals(localGroupId)) {
+                    return local;
+                }
+            }
+        }
+        if (version == null) throw new MissingException("No version for parent of " + pomXml);
+        var pom = pom(groupId, artifactId, version);
+        if (!Files.exists(pom)) throw new MissingException(pom + " does not exist");
+        return pom;
+    }
+
+    private static Dependency readDependency(Element xml) {
+        var d = new Dependency();
+        d.groupId = text(xml, "groupId");
+        d.artifactId = text(xml, "artifactId");
+        d.version = text(xml, "version");
+        d.type = text(xml, "type");
+        d.classifier = text(xml, "classifier");
+        d.scope = text(xml, "scope");
+        d.systemPath = text(xml, "systemPath");
+        d.optional = "true".equals(text(xml, "optional"));
+        for (var e : children(child(xml, "exclusions"), "exclusion")) {
+            d.exclusions.add(textOr(e, "groupId", "*") + ":" + textOr(e, "artifactId", "*"));
+        }
+        return d;
+    }
+
+    private static Dependency interpolate(Dependency raw, Map<String, String> properties) {
+        var d = raw.copy();
+        d.groupId = interpolate(d.groupId, properties);
+        d.artifactId = interpolate(d.artifactId, properties);
+        d.version = interpolate(d.version, properties);
+        d.type = interpolate(d.type, properties);
+        d.classifier = interpolate(d.classifier, properties);
+        d.scope = interpolate(d.scope, properties);
+        d.systemPath = interpolate(d.systemPath, properties);
+        return d;
+    }
+
+    private static final Pattern PROPERTY = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    private static String interpolate(String value, Map<String, String> properties) {
+        // Properties can refer to other properties, but give up if they refer to each other in a cycle
+        for (var depth = 0; value != null && value.contains("${") && depth < 10; depth++) {
+            var matcher = PROPERTY.matcher(value);
+            var result = new StringBuffer();
+            while (matcher.find()) {
+                var replacement = lookup(matcher.group(1), properties);
+                if (replacement == null) replacement = matcher.group();
+                matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+            }
+            matcher.appendTail(result);
+            if (result.toString().equals(value)) break;
+            value = result.toString();
+        }
+        return value;
+    }
+
+    private static String lookup(String name, Map<String, String> properties) {
+        var value = properties.get(name);
+        if (value != null) return value;
+        if (name.startsWith("env.")) return System.getenv(name.substring("env.".length()));
+        return System.getProperty(name);
+    }
+
+    private static Element parseXml(Path file) {
+        try {
+            var factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setExpandEntityReferences(false);
+            return factory.newDocumentBuilder().parse(file.toFile()).getDocumentElement();
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new RuntimeException("Failed to parse " + file, e);
+        }
+    }
+
+    private static Element child(Element parent, String name) {
+        var list = children(parent, name);
+        if (list.isEmpty()) return null;
+        return list.get(0);
+    }
+
+    private static List<Element> children(Element parent) {
+        return children(parent, null);
+    }
+
+    /** Direct children of `parent` named `name`, unlike getElementsByTagName, which searches all descendants */
+    private static List<Element> children(Element parent, String name) {
+        var result = new ArrayList<Element>();
+        if (parent == null) return result;
+        for (var n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (!(n instanceof Element)) continue;
+            var e = (Element) n;
+            if (name == null || e.getTagName().equals(name)) result.add(e);
+        }
+        return result;
+    }
+
+    private static String text(Element parent, String name) {
+        var e = child(parent, name);
+        if (e == null) return null;
+        return e.getTextContent().trim();
+    }
+
+    private static String textOr(Element parent, String name, String orElse) {
+        var text = text(parent, name);
+        if (text == null) return orElse;
+        return text;
+    }
+
+    /** The result of resolving a project, and the POM files it was resolved from */
+    private static class Saved {
+        final Path cacheFile;
+        final Set<Path> inputs;
+        final String digest;
+        final Set<Path> classPath;
+        /** docPath is null if we haven't resolved it yet */
+        Set<Path> docPath;
+
+        Saved(Path cacheFile, Set<Path> inputs, Set<Path> classPath, Set<Path> docPath) {
+            this(cacheFile, inputs, digest(inputs), classPath, docPath);
+        }
+
+        private Saved(Path cacheFile, Set<Path> inputs, String digest, Set<Path> classPath, Set<Path> docPath) {
+            this.cacheFile = cacheFile;
+            this.inputs = inputs;
+            this.digest = digest;
+            this.classPath = classPath;
+            this.docPath = docPath;
+        }
+
+        /** Check that none of the POM files have changed, and that every jar still exists */
+        boolean isValid() {
+            if (!digest.equals(digest(inputs))) return false;
+            for (var jar : classPath) {
+                if (!Files.exists(jar)) return false;
+            }
+            return true;
+        }
+
+        private static String digest(Set<Path> inputs) {
+            var all = new StringBuilder();
+            for (var file : inputs) {
+                all.append(file).append('\n');
+                try {
+                    all.append(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+                } catch (NoSuchFileException e) {
+                    all.append("<missing>");
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return DiskCache.hash(all.toString());
+        }
+
+        static Saved load(Path cacheFile) {
+            if (!Files.exists(cacheFile)) return null;
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+                var digest = in.readUTF();
+                var inputs = readPaths(in);
+                var classPath = readPaths(in);
+                var docPath = in.readBoolean() ? readPaths(in) : null;
+                return new Saved(cacheFile, inputs, digest, classPath, docPath);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to load maven dependencies from " + cacheFile, e);
+                return null;
+            }
+        }
+
+        void save() {
+            try {
+                Files.createDirectories(cacheFile.getParent());
+                var tmp = Files.createTempFile(cacheFile.getParent(), "maven", ".tmp");
+                try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(digest);
+                    writePaths(out, inputs);
+                    writePaths(out, classPath);
+                    out.writeBoolean(docPath != null);
+                    if (docPath != null) writePaths(out, docPath);
+                }
+                Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to save maven dependencies to " + cacheFile, e);
+            }
+        }
+
+        private static Set<Path> readPaths(DataInputStream in) throws IOException {
+            var paths = new LinkedHashSet<Path>();
+            var n = in.readInt();
+            for (var i = 0; i < n; i++) {
+                paths.add(Paths.get(in.readUTF()));
+            }
+            return paths;
+        }
+
+        private static void writePaths(DataOutputStream out, Set<Path> paths) throws IOException {
+            out.writeInt(paths.size());
+            for (var p : paths) {
+                out.writeUTF(p.toString());
+            }
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -7,6 +7,7 @@ import com.sun.source.util.*;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.*;
 import java.util.logging.Logger;
@@ -18,14 +19,20 @@ import org.javacs.lsp.*;
 
 class Parser {
     private static final JavaCompiler COMPILER = ServiceLoader.load(JavaCompiler.class).iterator().next();
-    private static final SourceFileManager FILE_MANAGER = new SourceFileManager();
+    /** File managers aren't thread-safe, so each thread that parses files gets its own */
+    private static final ThreadLocal<SourceFileManager> FILE_MANAGER = ThreadLocal.withInitial(SourceFileManager::new);
 
     /** Create a task that compiles a single file */
     private static JavacTask singleFileTask(JavaFileObject file) {
         return (JavacTask)
-                COMPILER.getTask(null, FILE_MANAGER, Parser::ignoreError, List.of(), List.of(), List.of(file));
+                COMPILER.getTask(
+                        null, FILE_MANAGER.get(), Parser::ignoreError, List.of(), List.of(), List.of(file));
     }
 
+    /**
+     * A Parser never changes after it is created, so one instance can be shared by every request that looks at the same
+     * version of a file. The javac task isn't thread-safe, so methods that use it are synchronized.
+     */
     private final String contents;
     private final JavacTask task;
     private final CompilationUnitTree root;
@@ -50,8 +57,19 @@ class Parser {
         }
     }
 
+    /** Each Parser holds a javac context of roughly half a megabyte, so only keep the most recently used files */
+    private static final Cache<Instant, Parser> cacheParse = new Cache<>(100);
+
+    /** Parse the current version of `file`, or reuse the last parse if `file` hasn't changed */
     static Parser parseFile(URI file) {
-        return new Parser(file);
+        var path = Paths.get(file);
+        var generation = Cache.generation(path);
+        var modified = FileStore.modified(path);
+        var cached = cacheParse.get(path, modified);
+        if (cached != null) return cached;
+        var parse = new Parser(file);
+        cacheParse.load(path, modified, generation, parse);
+        return parse;
     }
 
     static Parser parseJavaFileObject(JavaFileObject file) {
@@ -197,11 +215,11 @@ class Parser {
         return false;
     }
 
-    Optional<Range> range(TreePath path) {
+    synchronized Optional<Range> range(TreePath path) {
         return range(task, contents, path);
     }
 
-    Optional<Location> location(TreePath path) {
+    synchronized Optional<Location> location(TreePath path) {
         var uri = root.getSourceFile().toUri();
         return range(task, contents, path).map(range -> new Location(uri, range));
     }
@@ -214,7 +232,7 @@ class Parser {
         return contents.substring(cursor, endOfLine);
     }
 
-    CompletionContext completionContext(int line, int character) {
+    synchronized CompletionContext completionContext(int line, int character) {
         LOG.info(
                 String.format(
                         "Finding completion position near %s(%d,%d)...",
@@ -387,7 +405,7 @@ class Parser {
         return find.result;
     }
 
-    List<FoldingRange> foldingRanges() {
+    synchronized List<FoldingRange> foldingRanges() {
         var imports = new ArrayList<TreePath>();
         var blocks = new ArrayList<TreePath>();
         // TODO find comment trees
@@ -534,7 +552,7 @@ class Parser {
         return Optional.ofNullable(find.found);
     }
 
-    DocCommentTree doc(TreePath path) {
+    synchronized DocCommentTree doc(TreePath path) {
         // Find ptr in the file
         // Find the documentation attached to el
         var docs = DocTrees.instance(task);
@@ -759,7 +777,7 @@ class Parser {
                 (JavacTask)
                         COMPILER.getTask(
                                 null,
-                                FILE_MANAGER,
+                                FILE_MANAGER.get(),
                                 Parser::ignoreError,
                                 List.of(),
                                 null,
@@ -1011,21 +1029,37 @@ class Parser {
         return pruned;
     }
 
-    String prune(int line, int character) {
+    synchronized String prune(int line, int character) {
         // Erase all blocks that don't include line:character
-        var file = root.getSourceFile().toUri();
         var lines = root.getLineMap();
         var cursor = lines.getPosition(line, character);
         var pos = Trees.instance(task).getSourcePositions();
-        var contents = FileStore.contents(file);
         var buffer = new StringBuilder(contents);
         return prune(root, pos, buffer, new long[] {cursor}, true);
     }
 
-    String prune(String name) {
+    private static final Cache<Integer, String> cacheStubs = new Cache<>(1_000);
+
+    /** The contents of `file` with the body of every method and initializer erased, cached for each version */
+    static String stub(Path file) {
+        var generation = Cache.generation(file);
+        var version = FileStore.version(file.toUri());
+        var cached = cacheStubs.get(file, version);
+        if (cached != null) return cached;
+        // Don't use parseFile, stubs are for files that aren't open, which would just push useful parses out of the cache
+        var stub = new Parser(file.toUri()).stub();
+        cacheStubs.load(file, version, generation, stub);
+        return stub;
+    }
+
+    private synchronized String stub() {
+        var buffer = new StringBuilder(contents);
+        var pos = Trees.instance(task).getSourcePositions();
+        return prune(root, pos, buffer, new long[0], false);
+    }
+
+    synchronized String prune(String name) {
         // Find all occurrences of name in contents
-        var file = root.getSourceFile().toUri();
-        var contents = FileStore.contents(file);
         var list = new ArrayList<Long>();
         var pattern = Pattern.compile("\\b" + Pattern.quote(name) + "\\b");
         var matcher = pattern.matcher(contents);
@@ -1077,29 +1111,88 @@ class Parser {
     }
 
     static Set<URI> potentialReferences(Element to) {
-        LOG.info(String.format("Find potential references to `%s`...", to));
+        return PotentialReferences.of(to).find();
+    }
 
-        // If `to` is private, any definitions must be in the same file
-        if (to.getModifiers().contains(Modifier.PRIVATE)) {
-            LOG.info(String.format("...`%s` is private", to));
-            var set = new HashSet<URI>();
-            declaringFile(to).ifPresent(set::add);
-            return set;
+    /**
+     * PotentialReferences finds the files that might refer to a declaration. It remembers the name and visibility of
+     * the declaration instead of the Element, so it can be kept after the compilation is closed, and asked again after
+     * other files have changed.
+     */
+    static class PotentialReferences {
+        /** The only files that can refer to the declaration, or null if any file that contains its name can */
+        private final Set<URI> onlyFiles;
+        /** The name to look for, and the package to look in, or null to look everywhere */
+        private final String name, inPackage;
+        /** If the declaration is a type, files must also import it */
+        private final String importPackage, importClass;
+
+        private PotentialReferences(
+                Set<URI> onlyFiles, String name, String inPackage, String importPackage, String importClass) {
+            this.onlyFiles = onlyFiles;
+            this.name = name;
+            this.inPackage = inPackage;
+            this.importPackage = importPackage;
+            this.importClass = importClass;
         }
 
-        var findName = simpleName(to);
-        var isField = to instanceof VariableElement && to.getEnclosingElement() instanceof TypeElement;
-        var isType = to instanceof TypeElement;
-        var isMethod = to instanceof ExecutableElement;
-        if (isField || isType || isMethod) {
-            LOG.info(String.format("...find identifiers named `%s`", findName));
-            var allFiles = possibleFiles(to);
-            // TODO this needs to use open text if available
+        private static PotentialReferences only(Set<URI> files) {
+            return new PotentialReferences(files, null, null, null, null);
+        }
+
+        static PotentialReferences of(Element to) {
+            LOG.info(String.format("Find potential references to `%s`...", to));
+
+            // If `to` is private, any definitions must be in the same file
+            if (to.getModifiers().contains(Modifier.PRIVATE)) {
+                LOG.info(String.format("...`%s` is private", to));
+                var set = new HashSet<URI>();
+                declaringFile(to).ifPresent(set::add);
+                return only(set);
+            }
+
+            var isField = to instanceof VariableElement && to.getEnclosingElement() instanceof TypeElement;
+            var isType = to instanceof TypeElement;
+            var isMethod = to instanceof ExecutableElement;
+            if (isField || isType || isMethod) {
+                var name = simpleName(to).toString();
+                if (!name.matches("\\w*")) throw new RuntimeException(String.format("`%s` is not a word", name));
+                // If `to` is package-private, only look in my own package
+                var inPackage = isPackagePrivate(to) ? packageName(to) : null;
+                // You can't reference a TypeElement without importing it
+                if (isType) return new PotentialReferences(null, name, inPackage, packageName(to), className(to));
+                return new PotentialReferences(null, name, inPackage, null, null);
+            } else {
+                // Fields, type parameters can only be referenced from within the same file
+                LOG.info(String.format("...references to `%s` must be in the same file", to));
+                var files = new HashSet<URI>();
+                var toFile = declaringFile(to);
+                // If there is no declaring file
+                if (!toFile.isPresent()) {
+                    LOG.info("..has no declaring file");
+                    return only(files);
+                }
+                // If the declaring file isn't a normal file, for example if it's in src.zip
+                if (!FileStore.isJavaFile(toFile.get())) {
+                    LOG.info(String.format("...%s is not on the source path", toFile.get()));
+                    return only(files);
+                }
+                // Otherwise, jump to the declaring file
+                LOG.info(String.format("...declared in %s", toFile.get().getPath()));
+                files.add(toFile.get());
+                return only(files);
+            }
+        }
+
+        /** Find the files that might refer to the declaration now */
+        Set<URI> find() {
+            if (onlyFiles != null) return new HashSet<>(onlyFiles);
+            LOG.info(String.format("...find identifiers named `%s`", name));
+            var allFiles = possibleFiles(inPackage);
             // Check if the file contains the name of `to`
-            var hasWord = containsWord(allFiles, to);
-            // You can't reference a TypeElement without importing it
-            if (to instanceof TypeElement) {
-                hasWord = containsImport(hasWord, (TypeElement) to);
+            var hasWord = containsWord(allFiles, name);
+            if (importClass != null) {
+                hasWord = containsImport(hasWord, importPackage, importClass);
             }
             // Convert Path to URI
             var matches = new HashSet<URI>();
@@ -1107,25 +1200,6 @@ class Parser {
                 matches.add(file.toUri());
             }
             return matches;
-        } else {
-            // Fields, type parameters can only be referenced from within the same file
-            LOG.info(String.format("...references to `%s` must be in the same file", to));
-            var files = new HashSet<URI>();
-            var toFile = declaringFile(to);
-            // If there is no declaring file
-            if (!toFile.isPresent()) {
-                LOG.info("..has no declaring file");
-                return files;
-            }
-            // If the declaring file isn't a normal file, for example if it's in src.zip
-            if (!FileStore.isJavaFile(toFile.get())) {
-                LOG.info(String.format("...%s is not on the source path", toFile.get()));
-                return files;
-            }
-            // Otherwise, jump to the declaring file
-            LOG.info(String.format("...declared in %s", toFile.get().getPath()));
-            files.add(toFile.get());
-            return files;
         }
     }
 
@@ -1169,9 +1243,13 @@ class Parser {
     }
 
     private static Collection<Path> possibleFiles(Element to) {
+        return possibleFiles(isPackagePrivate(to) ? packageName(to) : null);
+    }
+
+    /** The files in package `myPkg`, or all files if `myPkg` is null */
+    private static Collection<Path> possibleFiles(String myPkg) {
         // If `to` is package-private, only look in my own package
-        if (isPackagePrivate(to)) {
-            var myPkg = packageName(to);
+        if (myPkg != null) {
             var allFiles = FileStore.list(myPkg);
             LOG.info(String.format("...check %d files in my own package %s", allFiles.size(), myPkg));
             return allFiles;
@@ -1182,62 +1260,29 @@ class Parser {
         return allFiles;
     }
 
-    private static Cache<String, Boolean> cacheContainsWord = new Cache<>();
-
     private static List<Path> containsWord(Collection<Path> allFiles, Element to) {
         // Figure out what name we're looking for
         var name = to.getSimpleName().toString();
         if (name.equals("<init>")) name = to.getEnclosingElement().getSimpleName().toString();
         if (!name.matches("\\w*")) throw new RuntimeException(String.format("`%s` is not a word", name));
+        return containsWord(allFiles, name);
+    }
 
-        // Figure out all files that need to be re-scanned
-        var outOfDate = new ArrayList<Path>();
-        for (var file : allFiles) {
-            // If we know file doesn't contain a prefix of word, we know it doesn't contain the word
-            var prefix = name.substring(0, name.length() - 1);
-            if (!prefix.isEmpty() && cacheContainsWord.has(file, prefix) && !cacheContainsWord.get(file, prefix)) {
-                cacheContainsWord.load(file, name, false);
-                continue;
-            }
-            // Otherwise, scan the file in the next loop
-            if (cacheContainsWord.needs(file, name)) {
-                outOfDate.add(file);
-            }
-        }
-
-        // Update those files in cacheContainsWord
-        LOG.info(String.format("...scanning %d out-of-date files for the word `%s`", outOfDate.size(), name));
-        for (var file : outOfDate) {
-            var found = StringSearch.containsWord(file, name);
-            cacheContainsWord.load(file, name, found);
-        }
-
-        // Assemble list of all files that contain name
-        var hasWord = new ArrayList<Path>();
-        for (var file : allFiles) {
-            if (cacheContainsWord.get(file, name)) {
-                hasWord.add(file);
-            }
-        }
+    private static List<Path> containsWord(Collection<Path> allFiles, String name) {
+        // Look up files that contain name in the index, and keep the ones we're interested in
+        var indexed = WordIndex.filesContaining(name);
+        indexed.retainAll(allFiles);
+        var hasWord = new ArrayList<Path>(indexed);
         LOG.info(String.format("...%d files contain the word `%s`", hasWord.size(), name));
 
         return hasWord;
     }
 
-    private static Cache<String, Boolean> cacheContainsImport = new Cache<>();
-
-    private static List<Path> containsImport(Collection<Path> allFiles, TypeElement to) {
+    private static List<Path> containsImport(Collection<Path> allFiles, String toPackage, String toClass) {
         // Figure out which files import `to`, explicitly or implicitly
-        var qName = to.getQualifiedName().toString();
-        var toPackage = packageName(to);
-        var toClass = className(to);
         var hasImport = new ArrayList<Path>();
         for (var file : allFiles) {
-            if (cacheContainsImport.needs(file, qName)) {
-                var found = StringSearch.containsImport(file, toPackage, toClass);
-                cacheContainsImport.load(file, qName, found);
-            }
-            if (cacheContainsImport.get(file, qName)) {
+            if (WordIndex.containsImport(file, toPackage, toClass)) {
                 hasImport.add(file);
             }
         }
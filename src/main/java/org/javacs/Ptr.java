@@ -218,7 +218,7 @@ class Ptr {
         var that = (Ptr) other;
         return Objects.equals(this.packageName, that.packageName)
                 && Objects.equals(this.className, that.className)
-                && Objects.equals(that.memberName, that.memberName)
+                && Objects.equals(this.memberName, that.memberName)
                 && Objects.equals(this.erasedParameterTypes, that.erasedParameterTypes);
     }
 
@@ -0,0 +1,196 @@
+package org.javacs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ReferenceIndex remembers how many times each file refers to each declaration on the source path. Files are indexed
+ * whenever they are compiled in full, for example when they are linted, and in the background when code lenses need
+ * them, so counting the references to a declaration is a lookup no matter how many files refer to it. The index is
+ * saved in DiskCache.workspace(...), so after a restart only the files that have changed are compiled again.
+ */
+class ReferenceIndex {
+    private static final int MAGIC = 0x4a524546, VERSION = 1;
+
+    /** The references in one file, and the modified time of the file when it was compiled */
+    private static class FileRefs {
+        final Instant modified;
+        final Map<Ptr, Integer> counts;
+
+        FileRefs(Instant modified, Map<Ptr, Integer> counts) {
+            this.modified = modified;
+            this.counts = counts;
+        }
+    }
+
+    private final Map<URI, FileRefs> files = new HashMap<>();
+    /** incoming[ptr][uri] is the number of references to ptr in uri */
+    private final Map<Ptr, Map<URI, Integer>> incoming = new HashMap<>();
+    private Path cacheFile;
+    private boolean unsaved;
+
+    /** Replace the references in `file`, which were found by compiling the version of `file` modified at `modified` */
+    synchronized void update(URI file, Instant modified, Map<Ptr, Integer> counts) {
+        // Don't replace the results of compiling the current version of `file` with the results of another version
+        var old = files.get(file);
+        if (old != null && !old.modified.equals(modified) && old.modified.equals(FileStore.modified(Paths.get(file))))
+            return;
+        remove(file);
+        files.put(file, new FileRefs(modified, counts));
+        for (var ptr : counts.keySet()) {
+            incoming.computeIfAbsent(ptr, __ -> new HashMap<>()).put(file, counts.get(ptr));
+        }
+        unsaved = true;
+    }
+
+    synchronized void remove(URI file) {
+        var old = files.remove(file);
+        if (old == null) return;
+        for (var ptr : old.counts.keySet()) {
+            var from = incoming.get(ptr);
+            from.remove(file);
+            if (from.isEmpty()) incoming.remove(ptr);
+        }
+        unsaved = true;
+    }
+
+    /**
+     * The files in `uris` that have never been indexed or have changed since, and their current modified times. Files
+     * that are no longer in the workspace aren't stale, they just don't refer to anything.
+     */
+    Map<URI, Instant> stale(Collection<URI> uris) {
+        var stale = new LinkedHashMap<URI, Instant>();
+        for (var uri : uris) {
+            var path = Paths.get(uri);
+            if (!FileStore.contains(path)) continue;
+            var modified = FileStore.modified(path);
+            synchronized (this) {
+                var indexed = files.get(uri);
+                if (indexed == null || !indexed.modified.equals(modified)) stale.put(uri, modified);
+            }
+        }
+        return stale;
+    }
+
+    /** The files in the workspace that referred to any of `ptrs` when they were indexed */
+    synchronized Set<URI> referringFiles(Collection<Ptr> ptrs) {
+        var uris = new HashSet<URI>();
+        for (var ptr : ptrs) {
+            for (var uri : incoming.getOrDefault(ptr, Map.of()).keySet()) {
+                if (FileStore.contains(Paths.get(uri))) uris.add(uri);
+            }
+        }
+        return uris;
+    }
+
+    /** Count the references to any of `ptrs` in the files in the workspace */
+    synchronized int count(Collection<Ptr> ptrs) {
+        var count = 0;
+        for (var ptr : ptrs) {
+            var from = incoming.getOrDefault(ptr, Map.of());
+            for (var uri : from.keySet()) {
+                if (FileStore.contains(Paths.get(uri))) count += from.get(uri);
+            }
+        }
+        return count;
+    }
+
+    /** Replace the contents of the index with the index saved in `cacheFile`, and save it there from now on */
+    synchronized void load(Path cacheFile) {
+        this.cacheFile = cacheFile;
+        files.clear();
+        incoming.clear();
+        unsaved = false;
+        if (!Files.exists(cacheFile)) return;
+        var started = Instant.now();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.info("...ignoring reference index in old format " + cacheFile);
+                return;
+            }
+            var dictionary = new Ptr[in.readInt()];
+            for (var i = 0; i < dictionary.length; i++) {
+                dictionary[i] = new Ptr(in.readUTF());
+            }
+            var nFiles = in.readInt();
+            for (var i = 0; i < nFiles; i++) {
+                var file = URI.create(in.readUTF());
+                var modified = Instant.ofEpochSecond(in.readLong(), in.readInt());
+                var counts = new HashMap<Ptr, Integer>();
+                var nCounts = in.readInt();
+                for (var j = 0; j < nCounts; j++) {
+                    counts.put(dictionary[in.readInt()], in.readInt());
+                }
+                // Files that are no longer in the workspace are dropped, the rest are checked by stale(...)
+                if (!FileStore.contains(Paths.get(file))) continue;
+                update(file, modified, counts);
+            }
+            unsaved = false;
+            var elapsed = Duration.between(started, Instant.now()).toMillis();
+            LOG.info(String.format("Loaded reference index of %d files from %s in %d ms", nFiles, cacheFile, elapsed));
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to load reference index from " + cacheFile, e);
+            files.clear();
+            incoming.clear();
+        }
+    }
+
+    /** Save the index to the file it was loaded from, if it has changed since */
+    synchronized void save() {
+        if (cacheFile == null || !unsaved) return;
+        var started = Instant.now();
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            var tmp = Files.createTempFile(cacheFile.getParent(), "references", ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                // Write each distinct declaration once, and refer to declarations by number
+                var ids = new HashMap<Ptr, Integer>();
+                out.writeInt(incoming.size());
+                for (var ptr : incoming.keySet()) {
+                    ids.put(ptr, ids.size());
+                    out.writeUTF(ptr.toString());
+                }
+                out.writeInt(files.size());
+                for (var uri : files.keySet()) {
+                    var refs = files.get(uri);
+                    out.writeUTF(uri.toString());
+                    out.writeLong(refs.modified.getEpochSecond());
+                    out.writeInt(refs.modified.getNano());
+                    out.writeInt(refs.counts.size());
+                    for (var ptr : refs.counts.keySet()) {
+                        out.writeInt(ids.get(ptr));
+                        out.writeInt(refs.counts.get(ptr));
+                    }
+                }
+            }
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            unsaved = false;
+            var elapsed = Duration.between(started, Instant.now()).toMillis();
+            LOG.info(String.format("...saved reference index of %d files in %d ms", files.size(), elapsed));
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to save reference index to " + cacheFile, e);
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
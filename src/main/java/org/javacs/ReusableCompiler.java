@@ -54,6 +54,7 @@ import javax.tools.Diagnostic;
 import javax.tools.DiagnosticListener;
 import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
+import org.javacs.lsp.CancelToken;
 
 /**
  * A pool of reusable JavacTasks. When a task is no valid anymore, it is returned to the pool, and its Context may be
@@ -189,16 +190,18 @@ class ReusableCompiler {
             }
         }
 
+        // Between each phase of each file, stop if the request that started this task has been cancelled.
+        // Borrow.close() resets the context, so it can be reused by the next task.
         @Override
         @DefinedBy(Api.COMPILER_TREE)
         public void finished(TaskEvent e) {
-            // do nothing
+            CancelToken.check();
         }
 
         @Override
         @DefinedBy(Api.COMPILER_TREE)
         public void started(TaskEvent e) {
-            // do nothing
+            CancelToken.check();
         }
 
         <T> void drop(Key<T> k) {
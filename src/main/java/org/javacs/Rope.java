@@ -0,0 +1,290 @@
+package org.javacs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rope is the immutable text of an open document. It is a balanced tree of short strings, and each edit shares all of
+ * the tree except the path to the edit with the previous version, so applying a change takes O(log n) time instead of
+ * copying the whole document. Each node also counts the newlines beneath it, so converting between (line, character)
+ * and offset takes O(log n) time.
+ */
+class Rope implements CharSequence {
+    /** Small leaves are merged up to this size, and new text is split into leaves of this size */
+    private static final int CHUNK = 1024;
+
+    private abstract static class Node {
+        final int length, newlines, depth, leaves;
+
+        Node(int length, int newlines, int depth, int leaves) {
+            this.length = length;
+            this.newlines = newlines;
+            this.depth = depth;
+            this.leaves = leaves;
+        }
+    }
+
+    private static class Leaf extends Node {
+        final String text;
+
+        Leaf(String text) {
+            super(text.length(), countNewlines(text), 0, 1);
+            this.text = text;
+        }
+    }
+
+    private static class Branch extends Node {
+        final Node left, right;
+
+        Branch(Node left, Node right) {
+            super(
+                    left.length + right.length,
+                    left.newlines + right.newlines,
+                    Math.max(left.depth, right.depth) + 1,
+                    left.leaves + right.leaves);
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private static final Leaf EMPTY = new Leaf("");
+
+    private final Node root;
+    /** The text as a single String, created the first time someone asks for it */
+    private volatile String flat;
+
+    private Rope(Node root) {
+        this.root = root;
+    }
+
+    static Rope of(CharSequence text) {
+        if (text instanceof Rope) return (Rope) text;
+        return new Rope(build(text.toString()));
+    }
+
+    /** Replace the characters in [start, end) with `text` */
+    Rope replace(int start, int end, CharSequence text) {
+        if (start < 0 || start > end || end > length()) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d) is not in [0, %d)", start, end, length()));
+        }
+        var middle = text instanceof Rope ? ((Rope) text).root : build(text.toString());
+        var result = concat(concat(prefix(root, start), middle), suffix(root, end));
+        return new Rope(balance(result));
+    }
+
+    @Override
+    public int length() {
+        return root.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) throw new IndexOutOfBoundsException(index);
+        var node = root;
+        while (node instanceof Branch) {
+            var branch = (Branch) node;
+            if (index < branch.left.length) {
+                node = branch.left;
+            } else {
+                index -= branch.left.length;
+                node = branch.right;
+            }
+        }
+        return ((Leaf) node).text.charAt(index);
+    }
+
+    /** A view of [start, end), which shares its leaves with this rope */
+    @Override
+    public Rope subSequence(int start, int end) {
+        if (start < 0 || start > end || end > length()) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d) is not in [0, %d)", start, end, length()));
+        }
+        return new Rope(balance(prefix(suffix(root, start), end - start)));
+    }
+
+    @Override
+    public String toString() {
+        var result = flat;
+        if (result == null) {
+            var buffer = new StringBuilder(length());
+            appendTo(root, buffer);
+            result = buffer.toString();
+            flat = result;
+        }
+        return result;
+    }
+
+    /** Offset of the first occurrence of `s` at or after `from`, or -1 if there is none, without flattening the rope */
+    int indexOf(String s, int from) {
+        var last = length() - s.length();
+        for (var i = Math.max(0, from); i <= last; i++) {
+            var j = 0;
+            while (j < s.length() && charAt(i + j) == s.charAt(j)) j++;
+            if (j == s.length()) return i;
+        }
+        return -1;
+    }
+
+    /** Number of lines, which is one more than the number of newlines */
+    int lineCount() {
+        return root.newlines + 1;
+    }
+
+    /** Offset of the first character of zero-based `line`, or length() if there is no such line */
+    int lineStart(int line) {
+        if (line <= 0) return 0;
+        if (line > root.newlines) return length();
+        // Find the `line`th newline
+        var node = root;
+        var base = 0;
+        var skip = line;
+        while (node instanceof Branch) {
+            var branch = (Branch) node;
+            if (skip <= branch.left.newlines) {
+                node = branch.left;
+            } else {
+                skip -= branch.left.newlines;
+                base += branch.left.length;
+                node = branch.right;
+            }
+        }
+        var text = ((Leaf) node).text;
+        var i = -1;
+        for (; skip > 0; skip--) {
+            i = text.indexOf('\n', i + 1);
+        }
+        return base + i + 1;
+    }
+
+    /** Zero-based line that contains `offset` */
+    int line(int offset) {
+        if (offset < 0 || offset > length()) throw new IndexOutOfBoundsException(offset);
+        var node = root;
+        var line = 0;
+        while (node instanceof Branch) {
+            var branch = (Branch) node;
+            if (offset < branch.left.length) {
+                node = branch.left;
+            } else {
+                offset -= branch.left.length;
+                line += branch.left.newlines;
+                node = branch.right;
+            }
+        }
+        var text = ((Leaf) node).text;
+        for (var i = 0; i < offset; i++) {
+            if (text.charAt(i) == '\n') line++;
+        }
+        return line;
+    }
+
+    /**
+     * Convert a zero-based (line, character) position to an offset. Like the language server protocol, a character past
+     * the end of the line means the end of the line.
+     */
+    int offset(int line, int character) {
+        if (line > root.newlines) return length();
+        var start = lineStart(line);
+        var end = line == root.newlines ? length() : lineStart(line + 1) - 1;
+        return Math.min(start + character, end);
+    }
+
+    private static Node build(String text) {
+        if (text.length() <= CHUNK) return new Leaf(text);
+        var leaves = new ArrayList<Node>();
+        for (var i = 0; i < text.length(); i += CHUNK) {
+            leaves.add(new Leaf(text.substring(i, Math.min(i + CHUNK, text.length()))));
+        }
+        return merge(leaves, 0, leaves.size());
+    }
+
+    /** The first `length` characters of `node` */
+    private static Node prefix(Node node, int length) {
+        if (length <= 0) return EMPTY;
+        if (length >= node.length) return node;
+        if (node instanceof Leaf) {
+            return new Leaf(((Leaf) node).text.substring(0, length));
+        }
+        var branch = (Branch) node;
+        if (length <= branch.left.length) return prefix(branch.left, length);
+        return concat(branch.left, prefix(branch.right, length - branch.left.length));
+    }
+
+    /** Everything in `node` after the first `start` characters */
+    private static Node suffix(Node node, int start) {
+        if (start <= 0) return node;
+        if (start >= node.length) return EMPTY;
+        if (node instanceof Leaf) {
+            return new Leaf(((Leaf) node).text.substring(start));
+        }
+        var branch = (Branch) node;
+        if (start >= branch.left.length) return suffix(branch.right, start - branch.left.length);
+        return concat(suffix(branch.left, start), branch.right);
+    }
+
+    private static Node concat(Node left, Node right) {
+        if (left.length == 0) return right;
+        if (right.length == 0) return left;
+        // Merge small leaves, so typing one character at a time doesn't create one leaf per character
+        if (left instanceof Leaf && right instanceof Leaf && left.length + right.length <= CHUNK) {
+            return new Leaf(((Leaf) left).text + ((Leaf) right).text);
+        }
+        if (left instanceof Branch && right instanceof Leaf) {
+            var branch = (Branch) left;
+            if (branch.right instanceof Leaf && branch.right.length + right.length <= CHUNK) {
+                return new Branch(branch.left, new Leaf(((Leaf) branch.right).text + ((Leaf) right).text));
+            }
+        }
+        if (left instanceof Leaf && right instanceof Branch) {
+            var branch = (Branch) right;
+            if (branch.left instanceof Leaf && left.length + branch.left.length <= CHUNK) {
+                return new Branch(new Leaf(((Leaf) left).text + ((Leaf) branch.left).text), branch.right);
+            }
+        }
+        return new Branch(left, right);
+    }
+
+    /** Rebuild `node` if repeated edits have made it much deeper than a balanced tree */
+    private static Node balance(Node node) {
+        var balanced = 32 - Integer.numberOfLeadingZeros(node.leaves);
+        if (node.depth <= 2 * balanced + 8) return node;
+        var leaves = new ArrayList<Node>(node.leaves);
+        collectLeaves(node, leaves);
+        return merge(leaves, 0, leaves.size());
+    }
+
+    private static void collectLeaves(Node node, List<Node> leaves) {
+        if (node instanceof Leaf) {
+            if (node.length > 0) leaves.add(node);
+            return;
+        }
+        var branch = (Branch) node;
+        collectLeaves(branch.left, leaves);
+        collectLeaves(branch.right, leaves);
+    }
+
+    private static Node merge(List<Node> leaves, int from, int until) {
+        if (until - from == 0) return EMPTY;
+        if (until - from == 1) return leaves.get(from);
+        var mid = (from + until) / 2;
+        return new Branch(merge(leaves, from, mid), merge(leaves, mid, until));
+    }
+
+    private static void appendTo(Node node, StringBuilder buffer) {
+        if (node instanceof Leaf) {
+            buffer.append(((Leaf) node).text);
+            return;
+        }
+        var branch = (Branch) node;
+        appendTo(branch.left, buffer);
+        appendTo(branch.right, buffer);
+    }
+
+    private static int countNewlines(String text) {
+        var count = 0;
+        for (var i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+}
@@ -9,8 +9,19 @@ import java.util.logging.Logger;
 import javax.tools.*;
 
 class SourceFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    /**
+     * If stubs is true, files that javac finds on the source path are served with their method bodies erased. javac
+     * only needs their declarations, and attributing their bodies is most of the cost of compiling a dependency.
+     */
+    private final boolean stubs;
+
     SourceFileManager() {
+        this(false);
+    }
+
+    SourceFileManager(boolean stubs) {
         super(createDelegateFileManager());
+        this.stubs = stubs;
     }
 
     private static StandardJavaFileManager createDelegateFileManager() {
@@ -34,7 +45,7 @@ class SourceFileManager extends ForwardingJavaFileManager<StandardJavaFileManage
     }
 
     private JavaFileObject asJavaFileObject(Path file) {
-        // TODO erase method bodies of files that are not open
+        if (stubs) return SourceFileObject.stub(file);
         return new SourceFileObject(file);
     }
 
@@ -70,7 +81,7 @@ class SourceFileManager extends ForwardingJavaFileManager<StandardJavaFileManage
             var simpleClassName = StringSearch.lastName(className);
             for (var f : FileStore.list(packageName)) {
                 if (f.getFileName().toString().equals(simpleClassName + kind.extension)) {
-                    return new SourceFileObject(f);
+                    return asJavaFileObject(f);
                 }
             }
             // Fall through to disk in case we have .jar or .zip files on the source path
@@ -16,6 +16,8 @@ class SourceFileObject implements JavaFileObject {
     final String contents;
     /** if contents is set, the modified time of contents */
     final Instant modified;
+    /** stub is true if we should erase method bodies from the text in FileStore, see Parser.stub(path) */
+    final boolean stub;
 
     SourceFileObject(URI uri) {
         this(Paths.get(uri));
@@ -30,10 +32,20 @@ class SourceFileObject implements JavaFileObject {
     }
 
     SourceFileObject(Path path, String contents, Instant modified) {
+        this(path, contents, modified, false);
+    }
+
+    private SourceFileObject(Path path, String contents, Instant modified, boolean stub) {
         if (!FileStore.isJavaFile(path)) throw new RuntimeException(path + " is not a java source");
         this.path = path;
         this.contents = contents;
         this.modified = modified;
+        this.stub = stub;
+    }
+
+    /** A file whose method bodies are erased, for source-path dependencies whose bodies we never look at */
+    static SourceFileObject stub(Path path) {
+        return new SourceFileObject(path, null, Instant.EPOCH, true);
     }
 
     @Override
@@ -89,6 +101,9 @@ class SourceFileObject implements JavaFileObject {
             var bytes = contents.getBytes();
             return new ByteArrayInputStream(bytes);
         }
+        if (stub) {
+            return new ByteArrayInputStream(Parser.stub(path).getBytes());
+        }
         return FileStore.inputStream(path);
     }
 
@@ -102,6 +117,9 @@ class SourceFileObject implements JavaFileObject {
         if (contents != null) {
             return new StringReader(contents);
         }
+        if (stub) {
+            return new StringReader(Parser.stub(path));
+        }
         return FileStore.bufferedReader(path);
     }
 
@@ -110,7 +128,10 @@ class SourceFileObject implements JavaFileObject {
         if (contents != null) {
             return contents;
         }
-        return FileStore.contents(path);
+        if (stub) {
+            return Parser.stub(path);
+        }
+        return FileStore.charContent(path.toUri());
     }
 
     @Override
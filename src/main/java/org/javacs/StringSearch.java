@@ -14,6 +14,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -116,6 +117,12 @@ class StringSearch {
     }
 
     int next(ByteBuffer text, int startingAfter) {
+        var vector = Vector.INDEX_OF;
+        if (vector != null && pattern.length > 1 && text.hasArray()) {
+            var offset = text.arrayOffset();
+            var found = vector.indexOf(text.array(), offset + startingAfter, offset + text.limit(), pattern);
+            return found == -1 ? -1 : found - offset;
+        }
         var i = startingAfter + pattern.length - 1;
         while (i < text.limit()) {
             // Compare backwards from the end until the first unmatching character.
@@ -132,6 +139,35 @@ class StringSearch {
         return -1;
     }
 
+    /** IndexOf is implemented by VectorIndexOf, which is only available when compiled by the `vector` profile */
+    interface IndexOf {
+        /** Find the first position in text[from, until) where pattern starts, or -1 */
+        int indexOf(byte[] text, int from, int until, byte[] pattern);
+    }
+
+    /** Holds a SIMD implementation of next(...), or null if the JVM doesn't have the jdk.incubator.vector module */
+    private static class Vector {
+        static final IndexOf INDEX_OF = load();
+
+        private static IndexOf load() {
+            var module = ModuleLayer.boot().findModule("jdk.incubator.vector");
+            if (!module.isPresent()) return null;
+            try {
+                var found = Class.forName("org.javacs.VectorIndexOf");
+                StringSearch.class.getModule().addReads(module.get());
+                var vector = (IndexOf) found.getDeclaredConstructor().newInstance();
+                LOG.info("Using jdk.incubator.vector to search files");
+                return vector;
+            } catch (ClassNotFoundException e) {
+                // This build doesn't include VectorIndexOf
+                return null;
+            } catch (ReflectiveOperationException | LinkageError e) {
+                LOG.log(Level.WARNING, "Failed to load VectorIndexOf", e);
+                return null;
+            }
+        }
+    }
+
     boolean isWordChar(byte b) {
         char c = (char) (b + 128);
         return Character.isAlphabetic(c) || Character.isDigit(c) || c == '$' || c == '_';
@@ -209,7 +245,28 @@ class StringSearch {
         }
     }
 
-    private static final ByteBuffer SEARCH_BUFFER = ByteBuffer.allocateDirect(1 * 1024 * 1024);
+    /**
+     * Each thread that searches files gets its own buffer, so requests can search in parallel. The buffer is on the
+     * heap, so VectorIndexOf can load it with ByteVector.fromArray(...).
+     */
+    private static final ThreadLocal<ByteBuffer> SEARCH_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(1 * 1024 * 1024));
+
+    /** Read `file` into this thread's buffer, or map it into memory if it doesn't fit */
+    private static ByteBuffer read(Path file) throws IOException {
+        try (var channel = FileChannel.open(file)) {
+            var size = channel.size();
+            var buffer = SEARCH_BUFFER.get();
+            if (size > buffer.capacity()) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            buffer.clear();
+            buffer.limit((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {}
+            buffer.flip();
+            return buffer;
+        }
+    }
 
     // TODO cache the progress made by searching shorter queries
     static boolean containsWordMatching(Path java, String query) {
@@ -217,14 +274,9 @@ class StringSearch {
             var text = FileStore.contents(java);
             return matchesTitleCase(text, query);
         }
-        try (var channel = FileChannel.open(java)) {
-            // Read up to 1 MB of data from file
-            var limit = Math.min((int) channel.size(), SEARCH_BUFFER.capacity());
-            SEARCH_BUFFER.position(0);
-            SEARCH_BUFFER.limit(limit);
-            channel.read(SEARCH_BUFFER);
-            SEARCH_BUFFER.position(0);
-            var chars = Charset.forName("UTF-8").decode(SEARCH_BUFFER);
+        try {
+            var buffer = read(java);
+            var chars = Charset.forName("UTF-8").decode(buffer);
             return matchesTitleCase(chars, query);
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -237,14 +289,9 @@ class StringSearch {
             var text = FileStore.contents(java).getBytes();
             return search.nextWord(text) != -1;
         }
-        try (var channel = FileChannel.open(java)) {
-            // Read up to 1 MB of data from file
-            var limit = Math.min((int) channel.size(), SEARCH_BUFFER.capacity());
-            SEARCH_BUFFER.position(0);
-            SEARCH_BUFFER.limit(limit);
-            channel.read(SEARCH_BUFFER);
-            SEARCH_BUFFER.position(0);
-            return search.nextWord(SEARCH_BUFFER) != -1;
+        try {
+            var buffer = read(java);
+            return search.nextWord(buffer) != -1;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -256,14 +303,9 @@ class StringSearch {
             var text = FileStore.contents(java).getBytes();
             return search.next(text) != -1;
         }
-        try (var channel = FileChannel.open(java)) {
-            // Read up to 1 MB of data from file
-            var limit = Math.min((int) channel.size(), SEARCH_BUFFER.capacity());
-            SEARCH_BUFFER.position(0);
-            SEARCH_BUFFER.limit(limit);
-            channel.read(SEARCH_BUFFER);
-            SEARCH_BUFFER.position(0);
-            return search.next(SEARCH_BUFFER) != -1;
+        try {
+            var buffer = read(java);
+            return search.next(buffer) != -1;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -310,6 +352,45 @@ class StringSearch {
         return false;
     }
 
+    /**
+     * Score how well `candidate` matches `find`, or return -1 if it doesn't match at all. An exact match scores highest,
+     * then a case-insensitive match, a prefix, a substring that starts a word, any other substring, and finally the
+     * camel-case matches accepted by matchesTitleCase. Within each group, shorter candidates and earlier matches score
+     * higher.
+     */
+    static int matchScore(CharSequence candidate, String find) {
+        if (find.isEmpty()) return 0;
+        // Every kind of match contains the letters of find in order, which is quick to rule out
+        if (!containsInOrder(candidate, find)) return -1;
+        var name = candidate.toString();
+        if (name.equals(find)) return 1000;
+        if (name.equalsIgnoreCase(find)) return 900;
+        var extra = Math.min(name.length() - find.length(), 99);
+        if (name.regionMatches(true, 0, find, 0, find.length())) return 800 - extra;
+        var at = indexOfIgnoreCase(name, find);
+        if (at != -1) {
+            var startsWord = Character.isUpperCase(name.charAt(at)) || !isWordChar(name.charAt(at - 1));
+            return (startsWord ? 700 : 600) - Math.min(at, 49) - extra / 2;
+        }
+        if (matchesTitleCase(name, find)) return 400 - extra;
+        return -1;
+    }
+
+    private static boolean containsInOrder(CharSequence candidate, String find) {
+        var j = 0;
+        for (var i = 0; i < candidate.length() && j < find.length(); i++) {
+            if (Character.toLowerCase(candidate.charAt(i)) == Character.toLowerCase(find.charAt(j))) j++;
+        }
+        return j == find.length();
+    }
+
+    private static int indexOfIgnoreCase(String name, String find) {
+        for (var i = 0; i + find.length() <= name.length(); i++) {
+            if (name.regionMatches(true, i, find, 0, find.length())) return i;
+        }
+        return -1;
+    }
+
     private static int startOfToken(CharSequence candidate, int offset) {
         while (offset < candidate.length()) {
             char c = candidate.charAt(offset);
@@ -326,11 +407,13 @@ class StringSearch {
     static Cache<String, Boolean> cacheContainsClass = new Cache<>();
 
     static boolean containsClass(Path file, String simpleName) {
-        if (cacheContainsClass.needs(file, simpleName)) {
-            cacheContainsClass.load(file, simpleName, containsString(file, "class " + simpleName));
-            // TODO verify this by actually parsing the file
-        }
-        return cacheContainsClass.get(file, simpleName);
+        var generation = Cache.generation(file);
+        var cached = cacheContainsClass.get(file, simpleName);
+        if (cached != null) return cached;
+        // TODO verify this by actually parsing the file
+        var found = containsString(file, "class " + simpleName);
+        cacheContainsClass.load(file, simpleName, generation, found);
+        return found;
     }
 
     static boolean containsImport(Path file, String toPackage, String toClass) {
@@ -0,0 +1,233 @@
+package org.javacs;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.javacs.lsp.*;
+
+/**
+ * SymbolIndex remembers the classes, methods and fields declared in each source file, so workspace symbol search can
+ * score every declaration in the workspace, and only has to parse the files that changed since the last search. The
+ * whole workspace is indexed in the background when the workspace roots change, and searches that run before it's done
+ * return the best matches among the files indexed so far.
+ */
+class SymbolIndex {
+    /** A declaration, without the file it's in, which is shared by every declaration in the file */
+    private static class Symbol {
+        final String name, containerName;
+        final int kind, startLine, startCharacter, endLine, endCharacter;
+
+        Symbol(SymbolInformation info) {
+            this.name = info.name;
+            this.containerName = info.containerName;
+            this.kind = info.kind;
+            this.startLine = info.location.range.start.line;
+            this.startCharacter = info.location.range.start.character;
+            this.endLine = info.location.range.end.line;
+            this.endCharacter = info.location.range.end.character;
+        }
+    }
+
+    private static class FileSymbols {
+        /** modified is the FileStore.modified time of the version of the file that was parsed */
+        final Instant modified;
+        final URI uri;
+        final Symbol[] symbols;
+
+        FileSymbols(Instant modified, URI uri, Symbol[] symbols) {
+            this.modified = modified;
+            this.uri = uri;
+            this.symbols = symbols;
+        }
+    }
+
+    private static class Match {
+        final int score;
+        final Symbol symbol;
+        final FileSymbols file;
+
+        Match(int score, Symbol symbol, FileSymbols file) {
+            this.score = score;
+            this.symbol = symbol;
+            this.file = file;
+        }
+    }
+
+    /** Best matches first: highest score, then shortest name, then alphabetical, so results don't depend on file order */
+    private static final Comparator<Match> BEST_FIRST =
+            Comparator.<Match>comparingInt(m -> -m.score)
+                    .thenComparingInt(m -> m.symbol.name.length())
+                    .thenComparing(m -> m.symbol.name)
+                    .thenComparing(m -> m.file.uri);
+
+    /** files is read by searches without a lock, so they can search it while it is being filled */
+    private static final Map<Path, FileSymbols> files = new ConcurrentHashMap<>();
+    /** dirty contains files that might have changed since they were indexed */
+    private static final Set<Path> dirty = ConcurrentHashMap.newKeySet();
+    /** Held by the thread that is parsing dirty files, which is either a search or the background thread */
+    private static final ReentrantLock refreshing = new ReentrantLock();
+    /** A search parses this many changed files itself, more than that are left to the background thread */
+    private static final int MAX_SEARCH_REFRESH = 100;
+
+    private static final ExecutorService background =
+            Executors.newSingleThreadExecutor(
+                    task -> {
+                        var thread = new Thread(task, "index-symbols");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+    private static final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** Mark `file` as possibly changed or deleted, it will be re-indexed the next time the index is searched */
+    static void invalidate(Path file) {
+        dirty.add(file);
+    }
+
+    /** Index the dirty files on the background thread, for example after the workspace roots change */
+    static void refreshInBackground() {
+        if (dirty.isEmpty() || !scheduled.compareAndSet(false, true)) return;
+        background.execute(
+                () -> {
+                    scheduled.set(false);
+                    try {
+                        update();
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "Failed to index declarations", e);
+                    }
+                });
+    }
+
+    /** Index the dirty files on this thread, waiting for the background thread if it is indexing them */
+    static void update() {
+        refreshing.lock();
+        try {
+            refresh();
+        } finally {
+            refreshing.unlock();
+        }
+    }
+
+    /** Find the `limit` declarations in the workspace that best match `query`, best first */
+    static List<SymbolInformation> search(String query, int limit) {
+        if (limit <= 0) return List.of();
+        // If a few files have changed since the last search, parse them now, unless the background thread is busy
+        if (dirty.size() > MAX_SEARCH_REFRESH) {
+            refreshInBackground();
+        } else if (refreshing.tryLock()) {
+            try {
+                refresh();
+            } finally {
+                refreshing.unlock();
+            }
+        }
+        if (!dirty.isEmpty()) {
+            LOG.info(String.format("...%d files haven't been indexed yet, searching the rest", dirty.size()));
+        }
+        // Keep the best `limit` matches in a heap, with the worst of them on top so it can be replaced
+        var best = new PriorityQueue<Match>(limit + 1, BEST_FIRST.reversed());
+        var candidates = 0;
+        for (var file : files.values()) {
+            for (var symbol : file.symbols) {
+                candidates++;
+                var score = StringSearch.matchScore(symbol.name, query);
+                if (score < 0) continue;
+                if (best.size() == limit && !beats(score, symbol, best.peek())) continue;
+                best.add(new Match(score, symbol, file));
+                if (best.size() > limit) best.poll();
+            }
+        }
+        var sorted = new ArrayList<Match>(best);
+        sorted.sort(BEST_FIRST);
+        var result = new ArrayList<SymbolInformation>();
+        for (var m : sorted) {
+            result.add(asSymbolInformation(m));
+        }
+        LOG.info(String.format("...%d of %d declarations are best matches for `%s`", result.size(), candidates, query));
+        return result;
+    }
+
+    /**
+     * Check if a match would rank ahead of `worst` without creating it. Many files can declare the same name, and the
+     * first of them that we see is kept, so ties don't have to be broken by comparing URIs.
+     */
+    private static boolean beats(int score, Symbol symbol, Match worst) {
+        if (score != worst.score) return score > worst.score;
+        var name = symbol.name;
+        var worstName = worst.symbol.name;
+        if (name.length() != worstName.length()) return name.length() < worstName.length();
+        return name.compareTo(worstName) < 0;
+    }
+
+    /**
+     * Parse the files that have changed since they were indexed, and forget files that are gone. The caller holds
+     * refreshing. Files are read as they are now, not as the snapshot of the request that is searching sees them, so
+     * the index never records an old version of a file as the latest one.
+     */
+    private static void refresh() {
+        if (dirty.isEmpty()) return;
+        var started = Instant.now();
+        var parsed = FileStore.withoutSnapshot(SymbolIndex::parseDirtyFiles);
+        if (parsed > 0) {
+            var elapsed = Duration.between(started, Instant.now()).toMillis();
+            LOG.info(String.format("...indexed declarations in %d files in %d ms", parsed, elapsed));
+        }
+    }
+
+    private static int parseDirtyFiles() {
+        var parsed = 0;
+        for (var file : new ArrayList<Path>(dirty)) {
+            CancelToken.check();
+            // Take file out of dirty before reading it, so if it changes while we're parsing it, it will be marked again
+            if (!dirty.remove(file)) continue;
+            if (!FileStore.contains(file)) {
+                files.remove(file);
+                continue;
+            }
+            try {
+                var modified = FileStore.modified(file);
+                var existing = files.get(file);
+                if (existing != null && existing.modified.equals(modified)) continue;
+                // Don't use Parser.parseFile, which would push recently-used files out of its cache
+                var parse = Parser.parseJavaFileObject(new SourceFileObject(file));
+                var infos = parse.documentSymbols();
+                var symbols = new Symbol[infos.size()];
+                for (var i = 0; i < symbols.length; i++) {
+                    symbols[i] = new Symbol(infos.get(i));
+                }
+                files.put(file, new FileSymbols(modified, file.toUri(), symbols));
+            } catch (RuntimeException e) {
+                dirty.add(file);
+                throw e;
+            }
+            parsed++;
+        }
+        return parsed;
+    }
+
+    private static SymbolInformation asSymbolInformation(Match m) {
+        var s = m.symbol;
+        var i = new SymbolInformation();
+        i.name = s.name;
+        i.kind = s.kind;
+        i.containerName = s.containerName;
+        var range = new Range(new Position(s.startLine, s.startCharacter), new Position(s.endLine, s.endCharacter));
+        i.location = new Location(m.file.uri, range);
+        return i;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
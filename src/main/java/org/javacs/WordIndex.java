@@ -0,0 +1,319 @@
+package org.javacs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * WordIndex is an inverted index from identifiers to the source files that contain them. It replaces scanning every
+ * file in the workspace each time we look for potential references. The index is saved in DiskCache.workspace(...)
+ * so it survives restarts, and FileStore tells it when files are created, changed, deleted or edited.
+ */
+class WordIndex {
+    private static final int MAGIC = 0x4a574958, VERSION = 1;
+
+    private static class Entry {
+        /** modified is the FileStore.modified time of the text that was indexed */
+        final long modified;
+        /** version is the FileStore.version of the text that was indexed, or -1 if it was read from disk */
+        final int version;
+        final String packageName;
+        /** imports are the names in each import statement, for example `java.util.List`, `java.util.*`, `static ...` */
+        final List<String> imports;
+        final Set<String> words;
+
+        Entry(long modified, int version, String packageName, List<String> imports, Set<String> words) {
+            this.modified = modified;
+            this.version = version;
+            this.packageName = packageName;
+            this.imports = imports;
+            this.words = words;
+        }
+    }
+
+    private static final Map<Path, Entry> files = new HashMap<>();
+    private static final Map<String, Set<Path>> index = new HashMap<>();
+    /**
+     * dirty contains files that might have changed since they were indexed. It isn't guarded by the index lock, so
+     * FileStore never waits for a query that is re-indexing files.
+     */
+    private static final Set<Path> dirty = ConcurrentHashMap.newKeySet();
+    /** workspaceCacheFile is where the index of the current workspace roots is saved, cacheFile is the one loaded */
+    private static volatile Path workspaceCacheFile;
+    private static Path cacheFile;
+    private static boolean unsaved;
+
+    /** Switch to the index of `workspaceRoots`, which will be loaded the next time the index is queried */
+    static void setWorkspaceRoots(Set<Path> workspaceRoots) {
+        workspaceCacheFile = DiskCache.workspace(workspaceRoots).resolve("words.idx");
+    }
+
+    /** Mark `file` as possibly changed or deleted, it will be re-indexed the next time the index is queried */
+    static void invalidate(Path file) {
+        dirty.add(file);
+    }
+
+    /** Find all files that contain `word` as a complete identifier */
+    static synchronized Set<Path> filesContaining(String word) {
+        refresh();
+        return new HashSet<>(index.getOrDefault(word, Set.of()));
+    }
+
+    /** Check if `file` is in package `toPackage`, or imports `toPackage.toClass` */
+    static synchronized boolean containsImport(Path file, String toPackage, String toClass) {
+        if (toPackage.isEmpty()) return true;
+        refresh();
+        var entry = files.get(file);
+        if (entry == null) return StringSearch.containsImport(file, toPackage, toClass);
+        if (entry.packageName.equals(toPackage)) return true;
+        var importClass = toPackage + "." + toClass;
+        var importStatic = "static " + importClass;
+        for (var i : entry.imports) {
+            if (i.equals(importClass)) return true;
+            if (i.equals(toPackage + ".*")) return true;
+            if (i.startsWith(importStatic)) return true;
+        }
+        return false;
+    }
+
+    private static void refresh() {
+        var newCacheFile = workspaceCacheFile;
+        if (newCacheFile != null && !newCacheFile.equals(cacheFile)) {
+            cacheFile = newCacheFile;
+            files.clear();
+            index.clear();
+            unsaved = false;
+            load();
+            dirty.addAll(FileStore.all());
+        }
+        if (dirty.isEmpty()) return;
+        var started = Instant.now();
+        var updated = FileStore.withoutSnapshot(WordIndex::updateDirtyFiles);
+        if (updated > 0) {
+            var elapsed = Duration.between(started, Instant.now()).toMillis();
+            LOG.info(String.format("...re-indexed words in %d files in %d ms", updated, elapsed));
+        }
+        if (unsaved) {
+            save();
+            unsaved = false;
+        }
+    }
+
+    /** Re-index the dirty files as they are now, which may be newer than the snapshot of the request that asked */
+    private static int updateDirtyFiles() {
+        var updated = 0;
+        for (var file : new ArrayList<Path>(dirty)) {
+            // Take file out of dirty before reading it, so if it changes while we're scanning it, it will be marked again
+            if (!dirty.remove(file)) continue;
+            if (!FileStore.contains(file)) {
+                if (removeEntry(file)) unsaved = true;
+                continue;
+            }
+            Entry entry;
+            try {
+                var modified = FileStore.modified(file).toEpochMilli();
+                var version = FileStore.version(file.toUri());
+                var existing = files.get(file);
+                if (existing != null && existing.modified == modified && existing.version == version) continue;
+                entry = scan(file, modified, version);
+            } catch (RuntimeException e) {
+                dirty.add(file);
+                throw e;
+            }
+            if (entry == null) continue;
+            removeEntry(file);
+            putEntry(file, entry);
+            updated++;
+            // Edits to open documents aren't worth saving, because they will be different on disk
+            if (entry.version == -1) unsaved = true;
+        }
+        return updated;
+    }
+
+    private static boolean removeEntry(Path file) {
+        var entry = files.remove(file);
+        if (entry == null) return false;
+        for (var word : entry.words) {
+            var set = index.get(word);
+            if (set == null) continue;
+            set.remove(file);
+            if (set.isEmpty()) index.remove(word);
+        }
+        return true;
+    }
+
+    private static void putEntry(Path file, Entry entry) {
+        files.put(file, entry);
+        for (var word : entry.words) {
+            index.computeIfAbsent(word, __ -> new HashSet<>()).add(file);
+        }
+    }
+
+    private static final Pattern PACKAGE = Pattern.compile("^package +([\\w\\.]+) *;");
+    private static final Pattern IMPORT = Pattern.compile("^import +((static +)?[\\w\\.]+(\\.\\*)?) *;");
+    private static final Pattern START_OF_CLASS = Pattern.compile("^[\\w ]*class +\\w+");
+
+    private static Entry scan(Path file, long modified, int version) {
+        String text;
+        try {
+            if (version != -1) {
+                text = FileStore.contents(file);
+            } else {
+                text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // Find the package and imports, which appear before the first class
+        var packageName = "";
+        var imports = new ArrayList<String>();
+        for (var line : text.split("\n", -1)) {
+            if (START_OF_CLASS.matcher(line).find()) break;
+            var matchPackage = PACKAGE.matcher(line);
+            if (matchPackage.find()) {
+                packageName = matchPackage.group(1);
+                continue;
+            }
+            var matchImport = IMPORT.matcher(line);
+            if (matchImport.find()) {
+                imports.add(matchImport.group(1).replaceAll(" +", " "));
+            }
+        }
+        return new Entry(modified, version, packageName, imports, words(text));
+    }
+
+    /** Find all identifiers in `text`, using the same definition of a word as StringSearch.containsWord */
+    static Set<String> words(CharSequence text) {
+        var words = new HashSet<String>();
+        var start = -1;
+        for (var i = 0; i <= text.length(); i++) {
+            var isWord = i < text.length() && isWordChar(text.charAt(i));
+            if (isWord && start == -1) {
+                start = i;
+            } else if (!isWord && start != -1) {
+                words.add(text.subSequence(start, i).toString());
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static void load() {
+        if (cacheFile == null || !Files.exists(cacheFile)) return;
+        var started = Instant.now();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.info("...ignoring word index in old format " + cacheFile);
+                return;
+            }
+            var dictionary = new String[in.readInt()];
+            for (var i = 0; i < dictionary.length; i++) {
+                dictionary[i] = in.readUTF();
+            }
+            var nFiles = in.readInt();
+            for (var i = 0; i < nFiles; i++) {
+                var file = Paths.get(in.readUTF());
+                var modified = in.readLong();
+                var packageName = in.readUTF();
+                var imports = new ArrayList<String>();
+                var nImports = in.readInt();
+                for (var j = 0; j < nImports; j++) {
+                    imports.add(in.readUTF());
+                }
+                var words = new HashSet<String>();
+                var nWords = in.readInt();
+                for (var j = 0; j < nWords; j++) {
+                    words.add(dictionary[in.readInt()]);
+                }
+                // Files that are no longer in the workspace are dropped, the rest will be checked by refresh()
+                if (!FileStore.contains(file)) continue;
+                putEntry(file, new Entry(modified, -1, packageName, imports, words));
+            }
+            var elapsed = Duration.between(started, Instant.now()).toMillis();
+            LOG.info(String.format("Loaded word index of %d files from %s in %d ms", files.size(), cacheFile, elapsed));
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to load word index from " + cacheFile, e);
+            files.clear();
+            index.clear();
+        }
+    }
+
+    private static void save() {
+        if (cacheFile == null) return;
+        var started = Instant.now();
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            var tmp = Files.createTempFile(cacheFile.getParent(), "words", ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                // Write each distinct word once, and refer to words by number
+                var ids = new HashMap<String, Integer>();
+                out.writeInt(index.size());
+                for (var word : index.keySet()) {
+                    ids.put(word, ids.size());
+                    out.writeUTF(word);
+                }
+                var diskEntries = diskEntries();
+                out.writeInt(diskEntries.size());
+                for (var file : diskEntries) {
+                    var entry = files.get(file);
+                    out.writeUTF(file.toString());
+                    out.writeLong(entry.modified);
+                    out.writeUTF(entry.packageName);
+                    out.writeInt(entry.imports.size());
+                    for (var i : entry.imports) {
+                        out.writeUTF(i);
+                    }
+                    out.writeInt(entry.words.size());
+                    for (var word : entry.words) {
+                        out.writeInt(ids.get(word));
+                    }
+                }
+            }
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            var elapsed = Duration.between(started, Instant.now()).toMillis();
+            LOG.info(String.format("...saved word index of %d files in %d ms", files.size(), elapsed));
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to save word index to " + cacheFile, e);
+        }
+    }
+
+    /** Entries that reflect the contents of the file on disk, rather than an open document */
+    private static Collection<Path> diskEntries() {
+        var list = new ArrayList<Path>();
+        for (var file : files.keySet()) {
+            if (files.get(file).version == -1) list.add(file);
+        }
+        return list;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,56 @@
+package org.javacs.lsp;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * CancelToken is set when the client sends $/cancelRequest for a request that is already running. Each request runs
+ * with its own token, which long-running work can check by calling CancelToken.check(). Background jobs in the server
+ * can run with a token of their own, so they can be stopped the same way.
+ */
+public class CancelToken {
+    /** The token of requests that can't be cancelled */
+    private static final CancelToken NONE = new CancelToken();
+
+    private static final ThreadLocal<CancelToken> current = ThreadLocal.withInitial(() -> NONE);
+
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        if (this == NONE) throw new IllegalStateException("Can't cancel NONE");
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Run `task` on the current thread, with this as the current token */
+    public void run(Runnable task) {
+        current.set(this);
+        try {
+            task.run();
+        } finally {
+            current.remove();
+        }
+    }
+
+    /** The token of the request that is running on the current thread */
+    public static CancelToken current() {
+        return current.get();
+    }
+
+    /** Stop the current request if the client has cancelled it */
+    public static void check() {
+        if (current().cancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    /** javac wraps exceptions thrown by listeners, so we have to look at the whole chain of causes */
+    public static boolean isCancellation(Throwable e) {
+        for (var cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CancellationException) return true;
+        }
+        return false;
+    }
+}
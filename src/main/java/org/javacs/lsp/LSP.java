@@ -3,10 +3,14 @@ package org.javacs.lsp;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import java.io.*;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.logging.Level;
@@ -60,16 +64,17 @@ public class LSP {
         while (Character.isWhitespace(next)) {
             next = read(client);
         }
-        // Append next
-        var result = new StringBuilder();
-        var i = 0;
-        while (true) {
-            result.append(next);
-            i++;
-            if (i == byteLength) break;
-            next = read(client);
+        // Read the rest of the body as bytes, so multi-byte UTF-8 characters are decoded correctly
+        try {
+            var rest = client.readNBytes(byteLength - 1);
+            if (rest.length < byteLength - 1) throw new EndOfStream();
+            var bytes = new byte[byteLength];
+            bytes[0] = (byte) next;
+            System.arraycopy(rest, 0, bytes, 1, rest.length);
+            return new String(bytes, UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return result.toString();
     }
 
     static String nextToken(InputStream client) {
@@ -97,6 +102,7 @@ public class LSP {
         try {
             client.write(headerBytes);
             client.write(messageBytes);
+            client.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -106,36 +112,65 @@ public class LSP {
         return gson.toJson(message);
     }
 
-    static void respond(OutputStream client, int requestId, Object params) {
+    private static String response(int requestId, Object params) {
         if (params instanceof Optional) {
             var option = (Optional) params;
             params = option.orElse(null);
         }
         var jsonText = toJson(params);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"id\":%d,\"result\":%s}", requestId, jsonText);
-        writeClient(client, messageText);
+        return String.format("{\"jsonrpc\":\"2.0\",\"id\":%d,\"result\":%s}", requestId, jsonText);
+    }
+
+    static void respond(OutputStream client, int requestId, Object params) {
+        writeClient(client, response(requestId, params));
+    }
+
+    private static void respond(MessageWriter client, int requestId, Object params) {
+        client.send(response(requestId, params));
     }
 
-    private static void notifyClient(OutputStream client, String method, Object params) {
+    private static void respondError(MessageWriter client, int requestId, ResponseError error) {
+        var jsonText = toJson(error);
+        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"id\":%d,\"error\":%s}", requestId, jsonText);
+        client.send(messageText);
+    }
+
+    private static void respondCancelled(MessageWriter client, int requestId) {
+        respondError(client, requestId, new ResponseError(ErrorCodes.RequestCancelled, "Request was cancelled", null));
+    }
+
+    private static String notification(String method, Object params) {
         if (params instanceof Optional) {
             var option = (Optional) params;
             params = option.orElse(null);
         }
         var jsonText = toJson(params);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"method\":\"%s\",\"params\":%s}", method, jsonText);
-        writeClient(client, messageText);
+        return String.format("{\"jsonrpc\":\"2.0\",\"method\":\"%s\",\"params\":%s}", method, jsonText);
+    }
+
+    private static void notifyClient(MessageWriter client, String method, Object params) {
+        client.send(notification(method, params));
+    }
+
+    /** Send a notification that replaces any queued notification with the same key, serializing it on the writer */
+    private static void notifyClientLatest(MessageWriter client, String key, String method, Object params) {
+        client.sendLatest(key, () -> notification(method, params));
     }
 
     private static class RealClient implements LanguageClient {
-        final OutputStream send;
+        private static final String PROGRESS = "progress";
+
+        final MessageWriter send;
 
-        RealClient(OutputStream send) {
+        RealClient(MessageWriter send) {
             this.send = send;
         }
 
         @Override
         public void publishDiagnostics(PublishDiagnosticsParams params) {
-            notifyClient(send, "textDocument/publishDiagnostics", params);
+            // Only the latest diagnostics for each file matter
+            var key = "textDocument/publishDiagnostics " + params.uri;
+            notifyClientLatest(send, key, "textDocument/publishDiagnostics", params);
         }
 
         @Override
@@ -155,50 +190,126 @@ public class LSP {
 
         @Override
         public void customNotification(String method, JsonElement params) {
+            // Only the latest progress report matters, but reports before and after a start or end are kept apart
+            if (method.endsWith("/reportProgress")) {
+                notifyClientLatest(send, PROGRESS, method, params);
+                return;
+            }
+            if (method.endsWith("/startProgress") || method.endsWith("/endProgress")) {
+                send.endLatest(PROGRESS);
+            }
             notifyClient(send, method, params);
         }
     }
 
+    /**
+     * Requests that don't modify the state of the server. They run on worker threads, so a slow request doesn't delay
+     * the notifications and requests behind it.
+     */
+    private static final Set<String> READ_ONLY =
+            Set.of(
+                    "workspace/symbol",
+                    "textDocument/documentLink",
+                    "textDocument/completion",
+                    "completionItem/resolve",
+                    "textDocument/hover",
+                    "textDocument/signatureHelp",
+                    "textDocument/definition",
+                    "textDocument/references",
+                    "textDocument/documentSymbol",
+                    "textDocument/codeAction",
+                    "textDocument/codeLens",
+                    "codeLens/resolve",
+                    "textDocument/prepareRename",
+                    "textDocument/rename",
+                    "textDocument/formatting",
+                    "textDocument/foldingRange");
+
+    private static final int WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static Thread workerThread(Runnable task) {
+        var thread = new Thread(task, "worker");
+        thread.setDaemon(true);
+        return thread;
+    }
+
     public static void connect(
             Function<LanguageClient, LanguageServer> serverFactory, InputStream receive, OutputStream send) {
-        var server = serverFactory.apply(new RealClient(send));
-        var pending = new ArrayBlockingQueue<Message>(10);
+        connect(serverFactory, new MessageChannel(receive, send));
+    }
+
+    /** Like connect(serverFactory, InputStream, OutputStream), but reads and writes in large chunks */
+    public static void connect(
+            Function<LanguageClient, LanguageServer> serverFactory,
+            ReadableByteChannel receive,
+            WritableByteChannel send) {
+        connect(serverFactory, new MessageChannel(receive, send));
+    }
+
+    private static void connect(Function<LanguageClient, LanguageServer> serverFactory, MessageChannel channel) {
+        var writer = new MessageWriter(channel);
+        var server = serverFactory.apply(new RealClient(writer));
+        var pending = new MessageQueue();
         var endOfStream = new Message();
+        // Read-only requests that are queued or running on worker threads. Tokens are registered when the request is
+        // queued, so a cancellation that arrives while the main thread is handing the request to a worker isn't lost.
+        var running = new ConcurrentHashMap<Integer, CancelToken>();
 
         // Read messages and process cancellations on a separate thread
         class MessageReader implements Runnable {
             void peek(Message message) {
-                if (message.method.equals("$/cancelRequest")) {
+                if ("$/cancelRequest".equals(message.method)) {
                     var params = gson.fromJson(message.params, CancelParams.class);
                     var removed = pending.removeIf(r -> r.id != null && r.id.equals(params.id));
-                    if (removed) LOG.info(String.format("Cancelled request %d, which had not yet started", params.id));
-                    else LOG.info(String.format("Cannot cancel request %d because it has already started", params.id));
+                    var token = running.get(params.id);
+                    if (removed) {
+                        LOG.info(String.format("Cancelled request %d, which had not yet started", params.id));
+                        running.remove(params.id);
+                        respondCancelled(writer, params.id);
+                    } else if (token != null) {
+                        LOG.info(String.format("Cancelling request %d, which is running", params.id));
+                        token.cancel();
+                    } else {
+                        LOG.info(String.format("Cannot cancel request %d because it has already started", params.id));
+                    }
                 }
             }
 
-            private boolean kill() {
-                LOG.info("Read stream has been closed, putting kill message onto queue...");
-                try {
-                    pending.put(endOfStream);
-                    return true;
-                } catch (Exception e) {
-                    LOG.log(Level.SEVERE, "Failed to put kill message onto queue, will try again...", e);
-                    return false;
+            /** Queue `message`, and tell the client that the requests it replaces have been cancelled */
+            void put(Message message) {
+                if (message.id != null && READ_ONLY.contains(message.method)) {
+                    running.put(message.id, new CancelToken());
+                }
+                for (var old : pending.put(message)) {
+                    var replaced = "Cancelled %s request %d, which was replaced by request %d";
+                    LOG.info(String.format(replaced, old.method, old.id, message.id));
+                    running.remove(old.id);
+                    respondCancelled(writer, old.id);
                 }
             }
 
+            private void kill() {
+                LOG.info("Read stream has been closed, putting kill message onto queue...");
+                pending.put(endOfStream);
+            }
+
             @Override
             public void run() {
                 LOG.info("Placing incoming messages on queue...");
 
                 while (true) {
                     try {
-                        var token = nextToken(receive);
-                        var message = parseMessage(token);
+                        var message = channel.read();
                         peek(message);
-                        pending.put(message);
+                        put(message);
                     } catch (EndOfStream __) {
-                        if (kill()) return;
+                        kill();
+                        return;
+                    } catch (IOException e) {
+                        // The stream from the client is broken, so we will never be able to read from it again
+                        LOG.log(Level.SEVERE, "Failed to read from client", e);
+                        kill();
+                        return;
                     } catch (Exception e) {
                         LOG.log(Level.SEVERE, e.getMessage(), e);
                     }
@@ -209,7 +320,8 @@ public class LSP {
         reader.setDaemon(true);
         reader.start();
 
-        // Process messages on main thread
+        // Process messages on main thread, handing read-only requests to workers
+        var workers = Executors.newFixedThreadPool(WORKERS, LSP::workerThread);
         LOG.info("Reading messages from queue...");
         var hasAsyncWork = false;
         processMessages:
@@ -231,217 +343,248 @@ public class LSP {
             if (r == null) {
                 if (hasAsyncWork) {
                     server.doAsyncWork();
-                    hasAsyncWork = false;
+                    hasAsyncWork = server.hasAsyncWork();
                 }
                 continue;
             }
             // Otherwise, process the new message
             hasAsyncWork = true;
-            try {
-                switch (r.method) {
-                    case "initialize":
-                        {
-                            var params = gson.fromJson(r.params, InitializeParams.class);
-                            var response = server.initialize(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "initialized":
-                        {
-                            server.initialized();
-                            break;
-                        }
-                    case "shutdown":
-                        {
-                            LOG.warning("Got shutdown message");
-                            respond(send, r.id, null);
-                            break;
-                        }
-                    case "exit":
-                        {
-                            LOG.warning("Got exit message, exiting...");
-                            break processMessages;
-                        }
-                    case "workspace/didChangeWorkspaceFolders":
-                        {
-                            var params = gson.fromJson(r.params, DidChangeWorkspaceFoldersParams.class);
-                            server.didChangeWorkspaceFolders(params);
-                            break;
-                        }
-                    case "workspace/didChangeConfiguration":
-                        {
-                            var params = gson.fromJson(r.params, DidChangeConfigurationParams.class);
-                            server.didChangeConfiguration(params);
-                            break;
-                        }
-                    case "workspace/didChangeWatchedFiles":
-                        {
-                            var params = gson.fromJson(r.params, DidChangeWatchedFilesParams.class);
-                            server.didChangeWatchedFiles(params);
-                            break;
-                        }
-                    case "workspace/symbol":
-                        {
-                            var params = gson.fromJson(r.params, WorkspaceSymbolParams.class);
-                            var response = server.workspaceSymbols(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/documentLink":
-                        {
-                            var params = gson.fromJson(r.params, DocumentLinkParams.class);
-                            var response = server.documentLink(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/didOpen":
-                        {
-                            var params = gson.fromJson(r.params, DidOpenTextDocumentParams.class);
-                            server.didOpenTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/didChange":
-                        {
-                            var params = gson.fromJson(r.params, DidChangeTextDocumentParams.class);
-                            server.didChangeTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/willSave":
-                        {
-                            var params = gson.fromJson(r.params, WillSaveTextDocumentParams.class);
-                            server.willSaveTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/willSaveWaitUntil":
-                        {
-                            var params = gson.fromJson(r.params, WillSaveTextDocumentParams.class);
-                            var response = server.willSaveWaitUntilTextDocument(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/didSave":
-                        {
-                            var params = gson.fromJson(r.params, DidSaveTextDocumentParams.class);
-                            server.didSaveTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/didClose":
-                        {
-                            var params = gson.fromJson(r.params, DidCloseTextDocumentParams.class);
-                            server.didCloseTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/completion":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.completion(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "completionItem/resolve":
-                        {
-                            var params = gson.fromJson(r.params, CompletionItem.class);
-                            var response = server.resolveCompletionItem(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/hover":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.hover(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/signatureHelp":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.signatureHelp(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/definition":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.gotoDefinition(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/references":
-                        {
-                            var params = gson.fromJson(r.params, ReferenceParams.class);
-                            var response = server.findReferences(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/documentSymbol":
-                        {
-                            var params = gson.fromJson(r.params, DocumentSymbolParams.class);
-                            var response = server.documentSymbol(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/codeAction":
-                        {
-                            var params = gson.fromJson(r.params, CodeActionParams.class);
-                            var response = server.codeAction(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/codeLens":
-                        {
-                            var params = gson.fromJson(r.params, CodeLensParams.class);
-                            var response = server.codeLens(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "codeLens/resolve":
-                        {
-                            var params = gson.fromJson(r.params, CodeLens.class);
-                            var response = server.resolveCodeLens(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/prepareRename":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.prepareRename(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/rename":
-                        {
-                            var params = gson.fromJson(r.params, RenameParams.class);
-                            var response = server.rename(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/formatting":
-                        {
-                            var params = gson.fromJson(r.params, DocumentFormattingParams.class);
-                            var response = server.formatting(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/foldingRange":
-                        {
-                            var params = gson.fromJson(r.params, FoldingRangeParams.class);
-                            var response = server.foldingRange(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "$/cancelRequest":
-                        // Already handled in peek(message)
+            // Read-only requests run on a worker thread, against the state of the server as of now
+            if (r.id != null && READ_ONLY.contains(r.method)) {
+                var request = r;
+                var token = running.get(request.id);
+                Runnable task =
+                        () -> {
+                            try {
+                                token.run(() -> process(server, request, writer));
+                            } finally {
+                                running.remove(request.id);
+                            }
+                        };
+                workers.execute(server.snapshot(task));
+                continue;
+            }
+            // Everything else runs on the main thread, in the order it was received
+            if (!process(server, r, writer)) break processMessages;
+        }
+        workers.shutdownNow();
+        writer.close();
+    }
+
+    /** Handle one message, returning false if the server should exit */
+    private static boolean process(LanguageServer server, Message r, MessageWriter client) {
+        try {
+            // If the request was cancelled while it was waiting for a worker, don't start it
+            CancelToken.check();
+            switch (r.method) {
+                case "initialize":
+                    {
+                        var params = gson.fromJson(r.params, InitializeParams.class);
+                        var response = server.initialize(params);
+                        respond(client, r.id, response);
                         break;
-                    default:
-                        LOG.warning(String.format("Don't know what to do with method `%s`", r.method));
-                }
-            } catch (Exception e) {
-                LOG.log(Level.SEVERE, e.getMessage(), e);
-                if (r.id != null) {
-                    respond(send, r.id, new ResponseError(ErrorCodes.InternalError, e.getMessage(), null));
-                }
+                    }
+                case "initialized":
+                    {
+                        server.initialized();
+                        break;
+                    }
+                case "shutdown":
+                    {
+                        LOG.warning("Got shutdown message");
+                        respond(client, r.id, null);
+                        break;
+                    }
+                case "exit":
+                    {
+                        LOG.warning("Got exit message, exiting...");
+                        return false;
+                    }
+                case "workspace/didChangeWorkspaceFolders":
+                    {
+                        var params = gson.fromJson(r.params, DidChangeWorkspaceFoldersParams.class);
+                        server.didChangeWorkspaceFolders(params);
+                        break;
+                    }
+                case "workspace/didChangeConfiguration":
+                    {
+                        var params = gson.fromJson(r.params, DidChangeConfigurationParams.class);
+                        server.didChangeConfiguration(params);
+                        break;
+                    }
+                case "workspace/didChangeWatchedFiles":
+                    {
+                        var params = gson.fromJson(r.params, DidChangeWatchedFilesParams.class);
+                        server.didChangeWatchedFiles(params);
+                        break;
+                    }
+                case "workspace/symbol":
+                    {
+                        var params = gson.fromJson(r.params, WorkspaceSymbolParams.class);
+                        var response = server.workspaceSymbols(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/documentLink":
+                    {
+                        var params = gson.fromJson(r.params, DocumentLinkParams.class);
+                        var response = server.documentLink(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/didOpen":
+                    {
+                        var params = gson.fromJson(r.params, DidOpenTextDocumentParams.class);
+                        server.didOpenTextDocument(params);
+                        break;
+                    }
+                case "textDocument/didChange":
+                    {
+                        var params = gson.fromJson(r.params, DidChangeTextDocumentParams.class);
+                        server.didChangeTextDocument(params);
+                        break;
+                    }
+                case "textDocument/willSave":
+                    {
+                        var params = gson.fromJson(r.params, WillSaveTextDocumentParams.class);
+                        server.willSaveTextDocument(params);
+                        break;
+                    }
+                case "textDocument/willSaveWaitUntil":
+                    {
+                        var params = gson.fromJson(r.params, WillSaveTextDocumentParams.class);
+                        var response = server.willSaveWaitUntilTextDocument(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/didSave":
+                    {
+                        var params = gson.fromJson(r.params, DidSaveTextDocumentParams.class);
+                        server.didSaveTextDocument(params);
+                        break;
+                    }
+                case "textDocument/didClose":
+                    {
+                        var params = gson.fromJson(r.params, DidCloseTextDocumentParams.class);
+                        server.didCloseTextDocument(params);
+                        break;
+                    }
+                case "textDocument/completion":
+                    {
+                        var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                        var response = server.completion(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "completionItem/resolve":
+                    {
+                        var params = gson.fromJson(r.params, CompletionItem.class);
+                        var response = server.resolveCompletionItem(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/hover":
+                    {
+                        var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                        var response = server.hover(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/signatureHelp":
+                    {
+                        var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                        var response = server.signatureHelp(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/definition":
+                    {
+                        var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                        var response = server.gotoDefinition(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/references":
+                    {
+                        var params = gson.fromJson(r.params, ReferenceParams.class);
+                        var response = server.findReferences(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/documentSymbol":
+                    {
+                        var params = gson.fromJson(r.params, DocumentSymbolParams.class);
+                        var response = server.documentSymbol(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/codeAction":
+                    {
+                        var params = gson.fromJson(r.params, CodeActionParams.class);
+                        var response = server.codeAction(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/codeLens":
+                    {
+                        var params = gson.fromJson(r.params, CodeLensParams.class);
+                        var response = server.codeLens(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "codeLens/resolve":
+                    {
+                        var params = gson.fromJson(r.params, CodeLens.class);
+                        var response = server.resolveCodeLens(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/prepareRename":
+                    {
+                        var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                        var response = server.prepareRename(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/rename":
+                    {
+                        var params = gson.fromJson(r.params, RenameParams.class);
+                        var response = server.rename(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/formatting":
+                    {
+                        var params = gson.fromJson(r.params, DocumentFormattingParams.class);
+                        var response = server.formatting(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "textDocument/foldingRange":
+                    {
+                        var params = gson.fromJson(r.params, FoldingRangeParams.class);
+                        var response = server.foldingRange(params);
+                        respond(client, r.id, response);
+                        break;
+                    }
+                case "$/cancelRequest":
+                    // Already handled in peek(message)
+                    break;
+                default:
+                    LOG.warning(String.format("Don't know what to do with method `%s`", r.method));
+            }
+        } catch (Exception e) {
+            if (CancelToken.isCancellation(e)) {
+                LOG.info(String.format("...stopped cancelled request %d", r.id));
+                if (r.id != null) respondCancelled(client, r.id);
+                return true;
+            }
+            LOG.log(Level.SEVERE, e.getMessage(), e);
+            if (r.id != null) {
+                respondError(client, r.id, new ResponseError(ErrorCodes.InternalError, e.getMessage(), null));
             }
         }
+        return true;
     }
 
     private static final Logger LOG = Logger.getLogger("main");
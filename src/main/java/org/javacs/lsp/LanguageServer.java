@@ -116,5 +116,19 @@ public class LanguageServer {
         throw new RuntimeException("Unimplemented");
     }
 
+    /**
+     * Called on the main thread before a read-only request is handed to a worker thread. Servers can override this to
+     * capture the state the request should see, because later notifications will keep changing it.
+     */
+    public Runnable snapshot(Runnable request) {
+        return request;
+    }
+
+    /** Called on the main thread when no messages have arrived for a little while */
     public void doAsyncWork() {}
+
+    /** If true, doAsyncWork() will be called again at the next idle moment, even if no new messages arrive */
+    public boolean hasAsyncWork() {
+        return false;
+    }
 }
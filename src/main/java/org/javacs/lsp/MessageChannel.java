@@ -0,0 +1,175 @@
+package org.javacs.lsp;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MessageChannel reads and writes LSP messages, which are JSON bodies preceded by a Content-Length header. Incoming
+ * bytes are read in large chunks into one buffer, and each body is parsed straight out of that buffer, instead of being
+ * copied one character at a time into a string. Each outgoing message is sent with one gathering write of its header
+ * and body.
+ */
+class MessageChannel {
+    private static final Gson gson = new Gson();
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    /** Bytes that have been read from `in` but not yet consumed, between position and limit */
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY).flip();
+
+    MessageChannel(ReadableByteChannel in, WritableByteChannel out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    MessageChannel(InputStream in, OutputStream out) {
+        this(Channels.newChannel(in), flushing(out));
+    }
+
+    /** Streams like System.out are buffered, so flush after each message */
+    private static WritableByteChannel flushing(OutputStream out) {
+        var channel = Channels.newChannel(out);
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                var n = channel.write(src);
+                if (!src.hasRemaining()) out.flush();
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Read the next message, or throw EndOfStream if the client has closed the connection. Bodies that aren't valid
+     * messages are logged and skipped, so one bad message doesn't stop us from reading the ones after it.
+     */
+    Message read() throws IOException {
+        while (true) {
+            var length = readHeaders();
+            require(length);
+            var start = buffer.position();
+            Message message;
+            try {
+                var body = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + start, length);
+                var json = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+                message = gson.fromJson(json, Message.class);
+            } catch (JsonParseException e) {
+                LOG.log(Level.SEVERE, "Skipping message that could not be parsed", e);
+                continue;
+            } finally {
+                buffer.position(start + length);
+            }
+            if (message == null) {
+                LOG.severe("Skipping empty message");
+                continue;
+            }
+            return message;
+        }
+    }
+
+    /** Read headers up to and including the empty line that separates them from the body, and return Content-Length */
+    private int readHeaders() throws IOException {
+        var contentLength = -1;
+        while (true) {
+            var line = readLine();
+            if (line.isEmpty()) {
+                // Clients sometimes send extra \r\n between messages, which look like empty headers
+                if (contentLength != -1) return contentLength;
+                continue;
+            }
+            var colon = line.indexOf(':');
+            if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    private String readLine() throws IOException {
+        var start = buffer.position();
+        var i = start;
+        while (true) {
+            if (i == buffer.limit()) {
+                var consumed = i - start;
+                fill();
+                start = buffer.position();
+                i = start + consumed;
+                continue;
+            }
+            if (buffer.get(i) == '\n') break;
+            i++;
+        }
+        var end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+        var line = new String(buffer.array(), buffer.arrayOffset() + start, end - start, StandardCharsets.US_ASCII);
+        buffer.position(i + 1);
+        return line;
+    }
+
+    /** Read until at least `length` unconsumed bytes are in the buffer */
+    private void require(int length) throws IOException {
+        while (buffer.remaining() < length) {
+            fill();
+        }
+    }
+
+    /** Read more bytes from the channel, making room in the buffer if necessary */
+    private void fill() throws IOException {
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            var bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        var n = in.read(buffer);
+        buffer.flip();
+        if (n == -1) {
+            throw new LSP.EndOfStream();
+        }
+    }
+
+    /** Write one message, with its header */
+    void write(String messageText) throws IOException {
+        var body = ByteBuffer.wrap(messageText.getBytes(StandardCharsets.UTF_8));
+        var header = String.format("Content-Length: %d\r\n\r\n", body.remaining());
+        var buffers = new ByteBuffer[] {ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)), body};
+        if (out instanceof GatheringByteChannel) {
+            var gather = (GatheringByteChannel) out;
+            while (body.hasRemaining()) {
+                gather.write(buffers);
+            }
+            return;
+        }
+        for (var b : buffers) {
+            while (b.hasRemaining()) {
+                out.write(b);
+            }
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,109 @@
+package org.javacs.lsp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * MessageQueue holds the messages that the reader thread has received but the main thread has not yet processed. It is
+ * not a simple FIFO:
+ *
+ * <p>Document sync notifications jump ahead of queued requests for other documents, so that they are applied as soon as
+ * possible. They never jump ahead of other document sync notifications, or of requests for the same document, which
+ * would change the text that those requests see.
+ *
+ * <p>A completion, signature help or hover request replaces any queued request with the same method for the same
+ * document, because the client only cares about the answer for where the cursor is now. The replaced requests are
+ * returned from put(_), so the reader can tell the client they were cancelled.
+ *
+ * <p>The queue is unbounded, so the reader never stops reading, and cancellations are always seen promptly.
+ */
+class MessageQueue {
+    static final Set<String> DOCUMENT_SYNC =
+            Set.of(
+                    "textDocument/didOpen",
+                    "textDocument/didChange",
+                    "textDocument/willSave",
+                    "textDocument/didSave",
+                    "textDocument/didClose");
+
+    static final Set<String> SUPERSEDED =
+            Set.of("textDocument/completion", "textDocument/signatureHelp", "textDocument/hover");
+
+    private static class Queued {
+        final Message message;
+        /** The document that the message is about, or null if it isn't about one document */
+        final String uri;
+
+        Queued(Message message) {
+            this.message = message;
+            this.uri = uri(message);
+        }
+    }
+
+    private final LinkedList<Queued> queue = new LinkedList<>();
+
+    /** Add `message` to the queue, and return the requests it replaced */
+    synchronized List<Message> put(Message message) {
+        var next = new Queued(message);
+        var superseded = new ArrayList<Message>();
+        if (message.id != null && next.uri != null && message.method != null && SUPERSEDED.contains(message.method)) {
+            var it = queue.iterator();
+            while (it.hasNext()) {
+                var q = it.next();
+                if (q.message.id != null && message.method.equals(q.message.method) && next.uri.equals(q.uri)) {
+                    superseded.add(q.message);
+                    it.remove();
+                }
+            }
+        }
+        if (message.method != null && DOCUMENT_SYNC.contains(message.method)) {
+            // Go after the last message that has to stay ahead of this one
+            var it = queue.listIterator(queue.size());
+            while (it.hasPrevious()) {
+                if (mustPrecede(it.previous(), next)) {
+                    it.next();
+                    break;
+                }
+            }
+            it.add(next);
+        } else {
+            queue.add(next);
+        }
+        notifyAll();
+        return superseded;
+    }
+
+    private static boolean mustPrecede(Queued earlier, Queued sync) {
+        if (earlier.message.id == null) return true;
+        return earlier.uri == null || earlier.uri.equals(sync.uri);
+    }
+
+    /** Take the next message, waiting up to `timeout`, or return null if there is none */
+    synchronized Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        var deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (queue.isEmpty()) {
+            var remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return queue.remove().message;
+    }
+
+    /** Remove queued messages that match `filter`, and return true if any were removed */
+    synchronized boolean removeIf(Predicate<Message> filter) {
+        return queue.removeIf(q -> filter.test(q.message));
+    }
+
+    private static String uri(Message message) {
+        if (message.params == null || !message.params.isJsonObject()) return null;
+        var textDocument = message.params.getAsJsonObject().get("textDocument");
+        if (textDocument == null || !textDocument.isJsonObject()) return null;
+        var uri = textDocument.getAsJsonObject().get("uri");
+        if (uri == null || !uri.isJsonPrimitive()) return null;
+        return uri.getAsString();
+    }
+}
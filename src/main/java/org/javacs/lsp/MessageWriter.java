@@ -0,0 +1,138 @@
+package org.javacs.lsp;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MessageWriter sends messages to the client on its own thread, so handlers never wait on a slow client. Notifications
+ * are serialized on the writer thread, and a notification with a key replaces a queued notification with the same key
+ * that has not been written yet, so a client that reads slowly only receives the latest diagnostics for each file.
+ */
+class MessageWriter implements Runnable {
+    /** When this many messages are queued, senders wait for the client to catch up */
+    static final int MAX_QUEUED = 1000;
+
+    private static class Outgoing {
+        final String key;
+        Supplier<String> text;
+
+        Outgoing(String key, Supplier<String> text) {
+            this.key = key;
+            this.text = text;
+        }
+    }
+
+    private final MessageChannel client;
+    private final ArrayDeque<Outgoing> outgoing = new ArrayDeque<>();
+    /** latest[key] is the queued message that a new message with the same key replaces */
+    private final Map<String, Outgoing> latest = new HashMap<>();
+    private final Thread thread = new Thread(this, "writer");
+    private boolean closed;
+    private int highWater = 64;
+    private long coalesced;
+
+    MessageWriter(MessageChannel client) {
+        this.client = client;
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Send a message, after all the messages that have already been sent */
+    void send(String messageText) {
+        enqueue(null, () -> messageText);
+    }
+
+    /** Send a message, or if a message with the same key is still queued, replace it */
+    void sendLatest(String key, Supplier<String> messageText) {
+        enqueue(key, messageText);
+    }
+
+    /** Messages with `key` that are sent after this point don't replace those sent before it */
+    synchronized void endLatest(String key) {
+        latest.remove(key);
+    }
+
+    /** The number of messages that are waiting to be written */
+    synchronized int depth() {
+        return outgoing.size();
+    }
+
+    private synchronized void enqueue(String key, Supplier<String> messageText) {
+        if (key != null) {
+            var queued = latest.get(key);
+            if (queued != null) {
+                queued.text = messageText;
+                coalesced++;
+                return;
+            }
+        }
+        while (outgoing.size() >= MAX_QUEUED && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        var next = new Outgoing(key, messageText);
+        outgoing.add(next);
+        if (key != null) latest.put(key, next);
+        notifyAll();
+        if (outgoing.size() >= highWater) {
+            LOG.warning(
+                    String.format(
+                            "%d messages are waiting to be written to the client, %d replaced so far",
+                            outgoing.size(),
+                            coalesced));
+            highWater *= 2;
+        }
+    }
+
+    private synchronized Outgoing take() throws InterruptedException {
+        while (outgoing.isEmpty()) {
+            if (closed) return null;
+            wait();
+        }
+        var next = outgoing.remove();
+        if (next.key != null && latest.get(next.key) == next) latest.remove(next.key);
+        notifyAll();
+        return next;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Outgoing next;
+            try {
+                next = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (next == null) return;
+            try {
+                client.write(next.text.get());
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+    }
+
+    /** Finish writing messages that have already been sent, then stop the writer thread */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            LOG.warning("Interrupted while writing final messages");
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,8 @@
+class PruneMethods {
+    void a() {
+        
+    }
+    void b() {
+        
+    }
+}
\ No newline at end of file
@@ -0,0 +1,83 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import org.junit.Test;
+
+public class BazelDepsTest {
+
+    private static Path createWorkspace() throws IOException {
+        var root = Files.createTempDirectory("bazel-workspace");
+        Files.writeString(root.resolve("WORKSPACE"), "workspace(name = \"test\")\n");
+        Files.createDirectories(root.resolve("src"));
+        Files.writeString(root.resolve("src/BUILD"), "java_library(name = \"lib\")\n");
+        return root;
+    }
+
+    @Test
+    public void isBuildFile() {
+        assertTrue(BazelDeps.isBuildFile("WORKSPACE"));
+        assertTrue(BazelDeps.isBuildFile("WORKSPACE.bazel"));
+        assertTrue(BazelDeps.isBuildFile("MODULE.bazel"));
+        assertTrue(BazelDeps.isBuildFile("BUILD"));
+        assertTrue(BazelDeps.isBuildFile("BUILD.bazel"));
+        assertTrue(BazelDeps.isBuildFile("deps.bzl"));
+        assertFalse(BazelDeps.isBuildFile("Main.java"));
+        assertFalse(BazelDeps.isBuildFile("BUILD.txt"));
+    }
+
+    @Test
+    public void digestChangesWithBuildFiles() throws IOException {
+        var root = createWorkspace();
+        var before = BazelDeps.digest(root);
+        assertThat(BazelDeps.digest(root), equalTo(before));
+        Files.writeString(root.resolve("src/BUILD"), "java_library(name = \"lib\", deps = [\"//other\"])\n");
+        assertThat(BazelDeps.digest(root), not(equalTo(before)));
+    }
+
+    @Test
+    public void digestIgnoresOtherFiles() throws IOException {
+        var root = createWorkspace();
+        var before = BazelDeps.digest(root);
+        // Source files, build output and hidden directories don't change the dependency graph
+        Files.writeString(root.resolve("src/Main.java"), "class Main {}\n");
+        Files.createDirectories(root.resolve("bazel-out"));
+        Files.writeString(root.resolve("bazel-out/BUILD"), "\n");
+        Files.createDirectories(root.resolve(".git"));
+        Files.writeString(root.resolve(".git/rules.bzl"), "\n");
+        assertThat(BazelDeps.digest(root), equalTo(before));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        var cacheFile = Files.createTempDirectory("bazel-deps").resolve("bazel.deps");
+        var jars = Set.of(Paths.get("/external/a.jar"), Paths.get("/external/b.jar"));
+        var srcJars = Set.of(Paths.get("/external/a-sources.jar"));
+        BazelDeps.save(new BazelDeps("abc", jars, srcJars), cacheFile);
+        var loaded = BazelDeps.load(cacheFile);
+        assertThat(loaded.digest, equalTo("abc"));
+        assertThat(loaded.jars, equalTo(jars));
+        assertThat(loaded.srcJars, equalTo(srcJars));
+    }
+
+    @Test
+    public void loadMissingFile() throws IOException {
+        var cacheFile = Files.createTempDirectory("bazel-deps").resolve("bazel.deps");
+        assertThat(BazelDeps.load(cacheFile), nullValue());
+    }
+
+    @Test
+    public void useSavedDepsWithoutRunningBazel() throws IOException {
+        var root = createWorkspace();
+        var jars = Set.of(Paths.get("/external/a.jar"));
+        var cacheFile = DiskCache.workspace(Set.of(root)).resolve("bazel.deps");
+        BazelDeps.save(new BazelDeps(BazelDeps.digest(root), jars, Set.of()), cacheFile);
+        assertThat(BazelDeps.of(root).jars, equalTo(jars));
+    }
+}
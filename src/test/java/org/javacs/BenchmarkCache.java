@@ -0,0 +1,102 @@
+package org.javacs;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class BenchmarkCache {
+    private static final int FILES = 20_000, CLASS_NAMES = 50_000;
+
+    @State(Scope.Benchmark)
+    public static class CacheState {
+        public Cache<String, Boolean> cache = new Cache<>();
+        public Path[] files = files();
+        public String[] names = names();
+        public int next = 0;
+
+        @Setup(Level.Trial)
+        public void fill() {
+            for (var i = 0; i < Cache.DEFAULT_SIZE; i++) {
+                var file = files[i % files.length];
+                cache.load(file, names[i % names.length], Cache.generation(file), true);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object hit(CacheState state) {
+        var i = state.next++ % Cache.DEFAULT_SIZE;
+        return state.cache.get(state.files[i % state.files.length], state.names[i % state.names.length]);
+    }
+
+    @Benchmark
+    public Object invalidateAndMiss(CacheState state) {
+        var i = state.next++ % Cache.DEFAULT_SIZE;
+        var file = state.files[i % state.files.length];
+        Cache.invalidate(file);
+        return state.cache.get(file, state.names[i % state.names.length]);
+    }
+
+    private static Path[] files() {
+        var files = new Path[FILES];
+        for (var i = 0; i < files.length; i++) {
+            files[i] = Paths.get("/workspace/src/p" + (i / 100) + "/C" + i + ".java");
+        }
+        return files;
+    }
+
+    private static String[] names() {
+        var names = new String[CLASS_NAMES];
+        for (var i = 0; i < names.length; i++) {
+            names[i] = "Class" + i;
+        }
+        return names;
+    }
+
+    /**
+     * Simulate an 8-hour session, one minute at a time, and compare the memory held by an unbounded cache, which is how
+     * Cache used to behave, with the default bounded cache.
+     */
+    public static void main(String[] args) {
+        var files = files();
+        var names = names();
+        for (var maxSize : new int[] {Integer.MAX_VALUE, Cache.DEFAULT_SIZE}) {
+            var cache = new Cache<String, Boolean>(maxSize);
+            var random = new Random(0);
+            var before = usedMemory();
+            for (var minute = 0; minute < 8 * 60; minute++) {
+                // Look up classes, mostly in a few hot files, sometimes anywhere in the workspace
+                for (var i = 0; i < 2_000; i++) {
+                    var hot = random.nextInt(10) < 8;
+                    var file = files[hot ? random.nextInt(200) : random.nextInt(files.length)];
+                    var name = names[hot ? random.nextInt(1_000) : random.nextInt(names.length)];
+                    if (cache.get(file, name) == null) {
+                        cache.load(file, name, Cache.generation(file), random.nextBoolean());
+                    }
+                }
+                // Edit a few files
+                for (var i = 0; i < 10; i++) {
+                    Cache.invalidate(files[random.nextInt(200)]);
+                }
+            }
+            var after = usedMemory();
+            System.out.println(
+                    String.format("%s retains %d KB", cache, Math.max(0, after - before) / 1024));
+        }
+    }
+
+    private static long usedMemory() {
+        for (var i = 0; i < 3; i++) {
+            System.gc();
+        }
+        var runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,68 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class BenchmarkFileStore {
+    private static final int FILES_PER_PACKAGE = 100;
+
+    @State(Scope.Benchmark)
+    public static class WorkspaceState {
+        @Param({"1000", "10000", "100000"})
+        public int files;
+
+        public Path workspaceRoot, file;
+        public String packageName, className;
+
+        @Setup(Level.Trial)
+        public void createWorkspace() throws IOException {
+            workspaceRoot = Files.createTempDirectory("benchmark-file-store");
+            for (var i = 0; i < files; i++) {
+                var pkg = "p" + (i / FILES_PER_PACKAGE);
+                var cls = "C" + i;
+                var dir = Files.createDirectories(workspaceRoot.resolve(pkg));
+                var text = String.format("package %s;\n\nclass %s {}\n", pkg, cls);
+                Files.writeString(dir.resolve(cls + ".java"), text);
+            }
+            FileStore.setWorkspaceRoots(Set.of(workspaceRoot));
+            // Look up a file in the middle of the workspace
+            var middle = files / 2;
+            packageName = "p" + (middle / FILES_PER_PACKAGE);
+            className = "C" + middle;
+            file = workspaceRoot.resolve(packageName).resolve(className + ".java").toAbsolutePath().normalize();
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteWorkspace() throws IOException {
+            FileStore.setWorkspaceRoots(Set.of());
+            try (var walk = Files.walk(workspaceRoot)) {
+                walk.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public Object list(WorkspaceState state) {
+        return FileStore.list(state.packageName);
+    }
+
+    @Benchmark
+    public Object packageName(WorkspaceState state) {
+        return FileStore.packageName(state.file);
+    }
+
+    @Benchmark
+    public Object findDeclaringFile(WorkspaceState state) {
+        return FileStore.findDeclaringFile(state.packageName + "." + state.className);
+    }
+}
@@ -18,7 +18,7 @@ public class BenchmarkPruner {
     public static class CompilerState {
         public SourceFileObject file = file(false);
         public SourceFileObject pruned = file(true);
-        public JavaCompilerService compiler = createCompiler();
+        public JavaCompilerService compiler = createCompiler(true);
 
         private SourceFileObject file(boolean prune) {
             var file = Paths.get("src/main/java/org/javacs/JavaCompilerService.java").normalize();
@@ -30,16 +30,38 @@ public class BenchmarkPruner {
             }
         }
 
-        private static JavaCompilerService createCompiler() {
-            LOG.info("Create new compiler...");
+    }
+
+    /** A new compiler for each invocation, so every compile has to load the source-path dependencies of the file */
+    @State(Scope.Thread)
+    public static class ColdCompilerState {
+        @Param({"true", "false"})
+        public boolean stubs;
+
+        public SourceFileObject file =
+                new SourceFileObject(Paths.get("src/main/java/org/javacs/JavaLanguageServer.java").normalize());
+        public JavaCompilerService compiler;
 
-            var workspaceRoot = Paths.get(".").normalize().toAbsolutePath();
-            FileStore.setWorkspaceRoots(Set.of(workspaceRoot));
-            var classPath = new InferConfig(workspaceRoot).classPath();
-            return new JavaCompilerService(classPath, Collections.emptySet(), Collections.emptySet());
+        @Setup(Level.Invocation)
+        public void createCompiler() {
+            compiler = BenchmarkPruner.createCompiler(stubs);
         }
     }
 
+    private static JavaCompilerService createCompiler(boolean stubs) {
+        LOG.info("Create new compiler...");
+
+        var workspaceRoot = Paths.get(".").normalize().toAbsolutePath();
+        FileStore.setWorkspaceRoots(Set.of(workspaceRoot));
+        var classPath = new InferConfig(workspaceRoot).classPath();
+        return new JavaCompilerService(
+                classPath,
+                Collections.emptySet(),
+                Collections.emptySet(),
+                JavaCompilerService.DEFAULT_COMPILERS,
+                stubs);
+    }
+
     @Benchmark
     public void pruned(CompilerState state) {
         state.compiler.compileBatch(List.of(state.pruned)).close();
@@ -50,5 +72,11 @@ public class BenchmarkPruner {
         state.compiler.compileBatch(List.of(state.file)).close();
     }
 
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public void coldCompile(ColdCompilerState state) {
+        state.compiler.compileBatch(List.of(state.file)).close();
+    }
+
     private static final Logger LOG = Logger.getLogger("main");
 }
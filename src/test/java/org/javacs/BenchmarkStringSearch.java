@@ -0,0 +1,50 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class BenchmarkStringSearch {
+    /**
+     * The sources of this project, read into memory, so nextWord measures the search and not the disk. Run with
+     * `-jvmArgsAppend --add-modules=jdk.incubator.vector` after compiling with `-Pvector` to measure VectorIndexOf.
+     */
+    @State(Scope.Benchmark)
+    public static class CorpusState {
+        @Param({"removeMethodBodies", "CompileBatch", "notInTheCorpus"})
+        public String word;
+
+        public List<ByteBuffer> texts = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void readCorpus() throws IOException {
+            try (var walk = Files.walk(Paths.get("src"))) {
+                for (var file : (Iterable<Path>) walk::iterator) {
+                    if (!file.toString().endsWith(".java")) continue;
+                    texts.add(ByteBuffer.wrap(Files.readAllBytes(file)));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int nextWord(CorpusState state) {
+        var search = new StringSearch(state.word);
+        var found = 0;
+        for (var text : state.texts) {
+            if (search.nextWord(text) != -1) found++;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,63 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class BenchmarkSymbolIndex {
+    private static final int FILES_PER_PACKAGE = 100;
+
+    @State(Scope.Benchmark)
+    public static class WorkspaceState {
+        @Param({"50000"})
+        public int files;
+
+        @Param({"fb", "getName", "C25000"})
+        public String query;
+
+        public Path workspaceRoot;
+
+        /** Create a workspace with 10 declarations per file, and index it once so search only measures scoring */
+        @Setup(Level.Trial)
+        public void createWorkspace() throws IOException {
+            workspaceRoot = Files.createTempDirectory("benchmark-symbol-index");
+            for (var i = 0; i < files; i++) {
+                var pkg = "p" + (i / FILES_PER_PACKAGE);
+                var cls = "C" + i;
+                var dir = Files.createDirectories(workspaceRoot.resolve(pkg));
+                var text = new StringBuilder(String.format("package %s;\n\nclass %s {\n", pkg, cls));
+                text.append("    int fooBar, firstBaz, count;\n");
+                text.append("    String getName() { return null; }\n");
+                text.append("    void setName(String name) {}\n");
+                text.append(String.format("    void method%d() {}\n", i));
+                text.append("    boolean isEmpty() { return true; }\n");
+                text.append("    static class Inner {\n        int value;\n    }\n}\n");
+                Files.writeString(dir.resolve(cls + ".java"), text);
+            }
+            FileStore.setWorkspaceRoots(Set.of(workspaceRoot));
+            SymbolIndex.update();
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteWorkspace() throws IOException {
+            FileStore.setWorkspaceRoots(Set.of());
+            try (var walk = Files.walk(workspaceRoot)) {
+                walk.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public Object search(WorkspaceState state) {
+        return SymbolIndex.search(state.query, 50);
+    }
+}
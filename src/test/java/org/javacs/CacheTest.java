@@ -0,0 +1,53 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+import org.junit.Test;
+
+public class CacheTest {
+
+    @Test
+    public void invalidateFile() {
+        var cache = new Cache<String, Integer>();
+        var a = Paths.get("/CacheTest/A.java");
+        var b = Paths.get("/CacheTest/B.java");
+        cache.load(a, "x", Cache.generation(a), 1);
+        cache.load(b, "x", Cache.generation(b), 2);
+        Cache.invalidate(a);
+        assertThat(cache.get(a, "x"), nullValue());
+        assertThat(cache.get(b, "x"), equalTo(2));
+        assertThat(cache.hits(), equalTo(1L));
+        assertThat(cache.misses(), equalTo(1L));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        var cache = new Cache<String, Integer>(2);
+        var file = Paths.get("/CacheTest/C.java");
+        cache.load(file, "a", Cache.generation(file), 1);
+        cache.load(file, "b", Cache.generation(file), 2);
+        // Touch a, so b is the least-recently-used
+        cache.get(file, "a");
+        cache.load(file, "c", Cache.generation(file), 3);
+        assertThat(cache.get(file, "a"), equalTo(1));
+        assertThat(cache.get(file, "b"), nullValue());
+        assertThat(cache.get(file, "c"), equalTo(3));
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.evictions(), equalTo(1L));
+    }
+
+    @Test
+    public void dropValueComputedBeforeInvalidate() {
+        var cache = new Cache<String, Integer>();
+        var file = Paths.get("/CacheTest/D.java");
+        // Read the generation, then the file changes while the value is being computed
+        var generation = Cache.generation(file);
+        Cache.invalidate(file);
+        cache.load(file, "x", generation, 1);
+        assertThat(cache.get(file, "x"), nullValue());
+        cache.load(file, "x", Cache.generation(file), 2);
+        assertThat(cache.get(file, "x"), equalTo(2));
+    }
+}
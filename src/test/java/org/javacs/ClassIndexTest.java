@@ -0,0 +1,40 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+public class ClassIndexTest {
+
+    @Test
+    public void sortedAndDistinct() {
+        var index = ClassIndex.of(List.of("b.B", "a.A", "c.C", "a.A"));
+        assertThat(new ArrayList<>(index), contains("a.A", "b.B", "c.C"));
+        assertTrue(index.contains("b.B"));
+        assertFalse(index.contains("b"));
+        assertThat(ClassIndex.of(List.of()), empty());
+    }
+
+    @Test
+    public void jdk() {
+        var first = ClassIndex.jdk();
+        assertThat(first, hasItem("java.util.List"));
+        // The second time, the index is loaded from disk
+        var second = ClassIndex.jdk();
+        assertThat(second, equalTo(first));
+    }
+
+    @Test
+    public void classPath() {
+        var jar = Paths.get("src/test/examples/maven-project/lib/library.jar").toAbsolutePath();
+        var classes = Paths.get("target/classes").toAbsolutePath();
+        assertThat(ClassIndex.classPath(Set.of(jar)), contains("com.example.Library"));
+        assertThat(ClassIndex.classPath(Set.of(jar)), contains("com.example.Library"));
+        assertThat(ClassIndex.classPath(Set.of(jar, classes)), hasItems("com.example.Library", "org.javacs.Main"));
+    }
+}
@@ -3,8 +3,14 @@ package org.javacs;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.javacs.lsp.*;
 import org.junit.Test;
 
@@ -19,13 +25,29 @@ public class CodeLensTest {
         var resolved = new ArrayList<CodeLens>();
         for (var lens : lenses) {
             if (lens.command == null) {
-                lens = server.resolveCodeLens(lens);
+                lens = resolve(lens);
             }
             resolved.add(lens);
         }
         return resolved;
     }
 
+    /** Resolve `lens`, waiting for the files that refer to it to be indexed in the background */
+    private CodeLens resolve(CodeLens lens) {
+        var data = lens.data;
+        for (var attempt = 0; attempt < 300; attempt++) {
+            var resolved = server.resolveCodeLens(new CodeLens(lens.range, null, data));
+            if (!resolved.command.title.equals("? references")) return resolved;
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        fail("Timed out waiting for references to be indexed");
+        return null;
+    }
+
     private List<String> commands(List<? extends CodeLens> lenses) {
         var commands = new ArrayList<String>();
         for (var lens : lenses) {
@@ -65,6 +87,97 @@ public class CodeLensTest {
         assertThat(titles, hasItem("6:1 reference"));
     }
 
+    @Test
+    public void crossFileReferences() {
+        var lenses = lenses("/org/javacs/example/ReferenceTo.java");
+        var titles = titles(lenses);
+        assertThat(titles, hasItem("4:1 reference"));
+    }
+
+    @Test
+    public void countReferencesAddedToOtherFiles() throws IOException {
+        assertThat(titles(lenses("/org/javacs/example/ReferenceTo.java")), hasItem("4:1 reference"));
+        // Another file starts referring to ReferenceTo.method(), but ReferenceTo.java doesn't change
+        var uri = FindResource.uri("/org/javacs/example/ReferenceConstructor.java");
+        var document = new TextDocumentItem();
+        document.uri = uri;
+        document.version = 1;
+        document.text = Files.readString(Paths.get(uri)).replace("{ }", "{ ReferenceTo.method(); }");
+        server.didOpenTextDocument(new DidOpenTextDocumentParams(document));
+        try {
+            assertThat(titles(lenses("/org/javacs/example/ReferenceTo.java")), hasItem("4:2 references"));
+        } finally {
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument = new TextDocumentIdentifier(uri);
+            server.didCloseTextDocument(close);
+        }
+        assertThat(titles(lenses("/org/javacs/example/ReferenceTo.java")), hasItem("4:1 reference"));
+    }
+
+    @Test
+    public void resolveConcurrently() throws Exception {
+        var uri = FindResource.uri("/org/javacs/example/ConstructorRefs.java");
+        var lenses = server.codeLens(new CodeLensParams(new TextDocumentIdentifier(uri)));
+        var pool = Executors.newFixedThreadPool(4);
+        try {
+            var futures = new ArrayList<Future<CodeLens>>();
+            for (var lens : lenses) {
+                if (lens.command == null) futures.add(pool.submit(() -> resolve(lens)));
+            }
+            var resolved = new ArrayList<CodeLens>();
+            for (var f : futures) {
+                resolved.add(f.get());
+            }
+            var titles = titles(resolved);
+            assertThat(titles, hasItem("4:1 reference"));
+            assertThat(titles, hasItem("6:1 reference"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void ownerOfSharedTargetsIsCancelled() throws Exception {
+        var uri = FindResource.uri("/org/javacs/example/ReferenceFrom.java");
+        var lenses = new ArrayList<CodeLens>();
+        for (var lens : server.codeLens(new CodeLensParams(new TextDocumentIdentifier(uri)))) {
+            if (lens.command == null) lenses.add(lens);
+        }
+        assertThat(lenses, hasSize(greaterThanOrEqualTo(2)));
+        // Hold every compiler, so the first resolve waits inside compileFile with the shared targets unfinished
+        var compiler = server.compiler();
+        var held = new ArrayList<JavaCompilerService.PooledCompiler>();
+        for (var i = 0; i < compiler.maxCompilers; i++) {
+            held.add(compiler.borrowCompiler());
+        }
+        var pool = Executors.newFixedThreadPool(2);
+        try {
+            var ownerToken = new CancelToken();
+            var owner = pool.submit(() -> ownerToken.run(() -> server.resolveCodeLens(lenses.get(0))));
+            Thread.sleep(200);
+            var waiter = pool.submit(() -> resolve(lenses.get(1)));
+            Thread.sleep(200);
+            // javac wraps the cancellation of the first resolve, but the second resolve should still succeed
+            ownerToken.cancel();
+            for (var c : held) {
+                compiler.returnCompiler(c);
+            }
+            held.clear();
+            try {
+                owner.get();
+                fail("First resolve should have been cancelled");
+            } catch (ExecutionException e) {
+                assertTrue(CancelToken.isCancellation(e));
+            }
+            assertThat(waiter.get().command.title, endsWith("references"));
+        } finally {
+            for (var c : held) {
+                compiler.returnCompiler(c);
+            }
+            pool.shutdown();
+        }
+    }
+
     @Test
     public void enumConstants() {
         var lenses = lenses("/org/javacs/example/DontShowEnumConstRefs.java");
@@ -4,6 +4,12 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 
 import java.util.Set;
+import org.javacs.lsp.DidChangeTextDocumentParams;
+import org.javacs.lsp.DidCloseTextDocumentParams;
+import org.javacs.lsp.DidOpenTextDocumentParams;
+import org.javacs.lsp.Position;
+import org.javacs.lsp.Range;
+import org.javacs.lsp.TextDocumentContentChangeEvent;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -19,4 +25,34 @@ public class FileStoreTest {
         var file = FindResource.path("/org/javacs/example/Goto.java");
         assertThat(FileStore.suggestedPackageName(file), equalTo("org.javacs.example"));
     }
+
+    @Test
+    public void incrementalChange() {
+        var file = FindResource.path("/org/javacs/example/Goto.java");
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.uri = file.toUri();
+        open.textDocument.text = "class A {\n    void f() {}\n}\n";
+        FileStore.open(open);
+        try {
+            var change = new DidChangeTextDocumentParams();
+            change.textDocument.uri = file.toUri();
+            change.textDocument.version = 1;
+            // Rename f to g
+            var rename = new TextDocumentContentChangeEvent();
+            rename.range = new Range(new Position(1, 9), new Position(1, 10));
+            rename.text = "g";
+            change.contentChanges.add(rename);
+            // Add a field on a new line, after the change above
+            var insert = new TextDocumentContentChangeEvent();
+            insert.range = new Range(new Position(1, 15), new Position(1, 15));
+            insert.text = "\n    int x;";
+            change.contentChanges.add(insert);
+            FileStore.change(change);
+            assertThat(FileStore.contents(file), equalTo("class A {\n    void g() {}\n    int x;\n}\n"));
+        } finally {
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument.uri = file.toUri();
+            FileStore.close(close);
+        }
+    }
 }
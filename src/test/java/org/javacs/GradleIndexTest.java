@@ -0,0 +1,59 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import org.junit.Test;
+
+public class GradleIndexTest {
+
+    private static Path createJar(Path gradleHome, String group, String artifact, String version, String hash)
+            throws IOException {
+        var dir = gradleHome.resolve("caches/modules-2/files-2.1").resolve(group).resolve(artifact).resolve(version);
+        var jar = dir.resolve(hash).resolve(artifact + "-" + version + ".jar");
+        Files.createDirectories(jar.getParent());
+        Files.createFile(jar);
+        return jar;
+    }
+
+    @Test
+    public void findJar() throws IOException {
+        var gradleHome = Files.createTempDirectory("gradle-home");
+        var jar = createJar(gradleHome, "com.external", "external-library", "1.2", "xxx");
+        var index = GradleIndex.of(gradleHome);
+        var found = index.find("com.external", "external-library", "1.2", "external-library-1.2.jar");
+        assertThat(found, equalTo(Optional.of(jar)));
+        var missing = index.find("com.external", "external-library", "1.1", "external-library-1.1.jar");
+        assertThat(missing, equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void findNewVersion() throws IOException {
+        var gradleHome = Files.createTempDirectory("gradle-home");
+        createJar(gradleHome, "com.external", "external-library", "1.1", "xxx");
+        var index = GradleIndex.of(gradleHome);
+        // Adding a version doesn't change the modified time of the group, but we should still find it
+        var jar = createJar(gradleHome, "com.external", "external-library", "1.2", "yyy");
+        var found = index.find("com.external", "external-library", "1.2", "external-library-1.2.jar");
+        assertThat(found, equalTo(Optional.of(jar)));
+    }
+
+    @Test
+    public void rebuildWhenGroupAdded() throws IOException {
+        var gradleHome = Files.createTempDirectory("gradle-home");
+        createJar(gradleHome, "com.external", "external-library", "1.2", "xxx");
+        var files = gradleHome.resolve("caches/modules-2/files-2.1");
+        Files.setLastModifiedTime(files, FileTime.fromMillis(0));
+        var before = GradleIndex.of(gradleHome);
+        var jar = createJar(gradleHome, "com.other", "other-library", "1.0", "zzz");
+        var after = GradleIndex.of(gradleHome);
+        assertThat(after, not(sameInstance(before)));
+        var found = after.find("com.other", "other-library", "1.0", "other-library-1.0.jar");
+        assertThat(found, equalTo(Optional.of(jar)));
+    }
+}
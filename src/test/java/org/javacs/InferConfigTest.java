@@ -83,4 +83,13 @@ public class InferConfigTest {
         var path = InferConfig.readDependency(line);
         assertThat(path, equalTo(Paths.get(expect)));
     }
+
+    @Test
+    public void parseDependencyLineWithModule() {
+        var line =
+                "[INFO]    com.google.code.gson:gson:jar:2.8.5:compile:/home/user/.m2/repository/com/google/code/gson/gson/2.8.5/gson-2.8.5.jar -- module gson (auto)";
+        var expect = "/home/user/.m2/repository/com/google/code/gson/gson/2.8.5/gson-2.8.5.jar";
+        var path = InferConfig.readDependency(line);
+        assertThat(path, equalTo(Paths.get(expect)));
+    }
 }
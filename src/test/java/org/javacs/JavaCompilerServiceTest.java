@@ -16,6 +16,7 @@ import java.util.Set;
 import java.util.StringJoiner;
 import java.util.stream.Collectors;
 import org.javacs.lsp.*;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -37,6 +38,12 @@ public class JavaCompilerServiceTest {
         FileStore.setWorkspaceRoots(Set.of(simpleProjectSrc()));
     }
 
+    @After
+    public void resetWorkspaceRoot() {
+        // Other tests share FileStore, and expect the default workspace
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
     static String contents(String resourceFile) {
         var root = JavaCompilerServiceTest.simpleProjectSrc();
         var file = root.resolve(resourceFile);
@@ -243,6 +250,18 @@ public class JavaCompilerServiceTest {
         assertThat(diags, not(empty()));
     }
 
+    @Test
+    public void streamErrors() {
+        var files = List.of(resourceUri("HasError.java"), resourceUri("HelloWorld.java"));
+        var streamed = new ArrayList<PublishDiagnosticsParams>();
+        try (var batch = compiler.compileUris(files, streamed::add)) {
+            assertThat(streamed, hasSize(2));
+            assertThat(streamed.get(0).uri, equalTo(files.get(0)));
+            assertThat(streamed.get(0).diagnostics, not(empty()));
+            assertThat(batch.reportErrors(), containsInAnyOrder(streamed.get(0), streamed.get(1)));
+        }
+    }
+
     private static List<String> errorStrings(Collection<PublishDiagnosticsParams> list) {
         var strings = new ArrayList<String>();
         for (var group : list) {
@@ -341,4 +360,44 @@ public class JavaCompilerServiceTest {
         var expected = contents("PruneWords_erased.java");
         assertThat(actual, equalToIgnoringWhiteSpace(expected));
     }
+
+    @Test
+    public void stubMethods() {
+        var actual = Parser.stub(Paths.get(resourceUri("PruneMethods.java")));
+        var expected = contents("PruneMethods_stub.java");
+        assertThat(actual, equalToIgnoringWhiteSpace(expected));
+    }
+
+    @Test
+    public void reconfigureDocPath() {
+        var warm = compiler.borrowCompiler();
+        compiler.returnCompiler(warm);
+        var docPath = Set.of(simpleProjectSrc().toAbsolutePath());
+        var next = compiler.reconfigure(compiler.classPath, docPath, compiler.addExports, compiler.maxCompilers);
+        assertThat(next.docPath, equalTo(docPath));
+        assertThat(next.classPathClasses, sameInstance(compiler.classPathClasses));
+        assertThat(next.borrowCompiler(), sameInstance(warm));
+    }
+
+    @Test
+    public void reconfigureAddExports() {
+        var warm = compiler.borrowCompiler();
+        compiler.returnCompiler(warm);
+        var addExports = Set.of("jdk.compiler/com.sun.tools.javac.api");
+        var next = compiler.reconfigure(compiler.classPath, compiler.docPath, addExports, compiler.maxCompilers);
+        assertThat(next.classPathClasses, sameInstance(compiler.classPathClasses));
+        assertThat(next.borrowCompiler(), not(sameInstance(warm)));
+    }
+
+    @Test
+    public void tryCompileDoesNotWaitForBusyCompilers() {
+        var one = new JavaCompilerService(Set.of(), Set.of(), Set.of(), 1);
+        var uris = List.of(resourceUri("HelloWorld.java"));
+        var busy = one.borrowCompiler();
+        assertThat(one.tryCompileUris(uris, null).isPresent(), equalTo(false));
+        one.returnCompiler(busy);
+        var batch = one.tryCompileUris(uris, null);
+        assertThat(batch.isPresent(), equalTo(true));
+        batch.get().close();
+    }
 }
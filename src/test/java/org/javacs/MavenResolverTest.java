@@ -0,0 +1,34 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Test;
+
+public class MavenResolverTest {
+    private Path pomXml = Paths.get("src/test/examples/maven-modules/pom.xml");
+    private Path repository = Paths.get("src/test/examples/home-dir/.m2/repository").toAbsolutePath();
+    private Path external = repository.resolve("com/external/external-library/1.2");
+
+    @Test
+    public void classPathFromParentAndModules() {
+        var classPath = MavenResolver.resolve(pomXml, repository, false);
+        assertTrue(classPath.isPresent());
+        assertThat(classPath.get(), contains(external.resolve("external-library-1.2.jar")));
+    }
+
+    @Test
+    public void docPath() {
+        var docPath = MavenResolver.resolve(pomXml, repository, true);
+        assertTrue(docPath.isPresent());
+        assertThat(docPath.get(), contains(external.resolve("external-library-1.2-sources.jar")));
+    }
+
+    @Test
+    public void missingFromRepository() {
+        var classPath = MavenResolver.resolve(pomXml, Paths.get("nowhere"), false);
+        assertFalse(classPath.isPresent());
+    }
+}
@@ -0,0 +1,80 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReferenceIndexTest {
+
+    @Before
+    public void setWorkspaceRoot() {
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    private final Ptr method = new Ptr("org.javacs.example/Goto#method(int,java.lang.String)");
+    private final Ptr field = new Ptr("org.javacs.example/Goto#field");
+
+    @Test
+    public void countReferences() {
+        var index = new ReferenceIndex();
+        var a = FindResource.uri("/org/javacs/example/Goto.java");
+        var b = FindResource.uri("/org/javacs/example/GotoOther.java");
+        index.update(a, Instant.EPOCH, Map.of(method, 2, field, 1));
+        index.update(b, Instant.EPOCH, Map.of(method, 3));
+        assertThat(index.count(List.of(method)), equalTo(5));
+        assertThat(index.count(List.of(method, field)), equalTo(6));
+        assertThat(index.referringFiles(List.of(field)), contains(a));
+        index.remove(b);
+        assertThat(index.count(List.of(method)), equalTo(2));
+        assertThat(index.referringFiles(List.of(method)), contains(a));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        var cacheFile = Files.createTempDirectory("reference-index").resolve("references.idx");
+        var file = FindResource.uri("/org/javacs/example/Goto.java");
+        var modified = FileStore.modified(Paths.get(file));
+        var index = new ReferenceIndex();
+        index.load(cacheFile);
+        index.update(file, modified, Map.of(method, 2, field, 1));
+        index.save();
+
+        var loaded = new ReferenceIndex();
+        loaded.load(cacheFile);
+        assertThat(loaded.count(List.of(method)), equalTo(2));
+        assertThat(loaded.count(List.of(field)), equalTo(1));
+        // The file hasn't changed since it was indexed, so it doesn't need to be compiled again
+        assertThat(loaded.stale(List.of(file)).keySet(), empty());
+    }
+
+    @Test
+    public void staleAfterChange() {
+        var index = new ReferenceIndex();
+        var file = FindResource.uri("/org/javacs/example/Goto.java");
+        index.update(file, Instant.EPOCH, Map.of(method, 1));
+        assertThat(index.stale(List.of(file)).keySet(), contains(file));
+    }
+
+    @Test
+    public void replaceOlderVersion() {
+        var index = new ReferenceIndex();
+        var file = FindResource.uri("/org/javacs/example/Goto.java");
+        var modified = FileStore.modified(Paths.get(file));
+        // For example, the file was edited and then closed without saving
+        index.update(file, modified.plusSeconds(1), Map.of(method, 1));
+        index.update(file, modified, Map.of(method, 2));
+        assertThat(index.count(List.of(method)), equalTo(2));
+        // Results of compiling an older version don't replace the results of compiling the current version
+        index.update(file, Instant.EPOCH, Map.of(method, 3));
+        assertThat(index.count(List.of(method)), equalTo(2));
+    }
+}
@@ -0,0 +1,87 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class RopeTest {
+
+    @Test
+    public void replace() {
+        var rope = Rope.of("class Foo {\n}\n");
+        rope = rope.replace(6, 9, "Bar");
+        assertThat(rope.toString(), equalTo("class Bar {\n}\n"));
+        rope = rope.replace(11, 11, "\n    void test() {}");
+        assertThat(rope.toString(), equalTo("class Bar {\n    void test() {}\n}\n"));
+        assertThat(rope.lineCount(), equalTo(4));
+    }
+
+    @Test
+    public void lines() {
+        var rope = Rope.of("a\nbc\n\ndef");
+        assertThat(rope.lineStart(0), equalTo(0));
+        assertThat(rope.lineStart(1), equalTo(2));
+        assertThat(rope.lineStart(2), equalTo(5));
+        assertThat(rope.lineStart(3), equalTo(6));
+        assertThat(rope.line(0), equalTo(0));
+        assertThat(rope.line(3), equalTo(1));
+        assertThat(rope.line(5), equalTo(2));
+        assertThat(rope.line(9), equalTo(3));
+    }
+
+    @Test
+    public void indexOf() {
+        var rope = Rope.of("int x = 1;\n").replace(0, 0, "String name = \"\";\n");
+        assertThat(rope.indexOf("name", 0), equalTo(7));
+        assertThat(rope.indexOf("x", 7), equalTo(22));
+        assertThat(rope.indexOf("name", 8), equalTo(-1));
+        assertThat(rope.indexOf("1;\n", 0), equalTo(26));
+    }
+
+    @Test
+    public void offsetPastEndOfLine() {
+        var rope = Rope.of("a\nbc\n\ndef");
+        assertThat(rope.offset(1, 1), equalTo(3));
+        assertThat(rope.offset(1, 100), equalTo(4));
+        assertThat(rope.offset(3, 100), equalTo(9));
+        assertThat(rope.offset(100, 0), equalTo(9));
+    }
+
+    @Test
+    public void manySmallEdits() {
+        // Simulate typing into a large file, and compare with a StringBuilder
+        var random = new Random(0);
+        var expected = new StringBuilder();
+        for (var i = 0; i < 2000; i++) {
+            expected.append("line ").append(i).append('\n');
+        }
+        var rope = Rope.of(expected);
+        for (var i = 0; i < 5000; i++) {
+            var start = random.nextInt(expected.length() + 1);
+            var end = Math.min(expected.length(), start + random.nextInt(3));
+            var text = random.nextInt(10) == 0 ? "\n" : Character.toString('a' + random.nextInt(26));
+            expected.replace(start, end, text);
+            rope = rope.replace(start, end, text);
+        }
+        assertThat(rope.toString(), equalTo(expected.toString()));
+        assertThat(rope.length(), equalTo(expected.length()));
+        for (var i = 0; i < 100; i++) {
+            var offset = random.nextInt(expected.length());
+            assertThat(rope.charAt(offset), equalTo(expected.charAt(offset)));
+            var line = rope.line(offset);
+            var lineStart = expected.lastIndexOf("\n", offset - 1) + 1;
+            assertThat(rope.lineStart(line), equalTo(lineStart));
+            assertThat(rope.offset(line, offset - lineStart), equalTo(offset));
+        }
+    }
+
+    @Test
+    public void subSequence() {
+        var text = "0123456789".repeat(500);
+        var rope = Rope.of(text);
+        assertThat(rope.subSequence(1234, 3456).toString(), equalTo(text.substring(1234, 3456)));
+        assertThat(rope.subSequence(0, 0).length(), equalTo(0));
+    }
+}
@@ -33,6 +33,8 @@ public class SearchTest {
         document.text = textContent.toString();
 
         server.didOpenTextDocument(new DidOpenTextDocumentParams(document));
+        // The workspace is indexed in the background, wait for it so searches see every file
+        SymbolIndex.update();
     }
 
     private static Set<String> searchWorkspace(String query, int limit) {
@@ -71,6 +73,16 @@ public class SearchTest {
         assertThat(all, hasItem("methodStatic"));
     }
 
+    @Test
+    public void bestMatchesFirst() {
+        var found = server.workspaceSymbols(new WorkspaceSymbolParams("methodStatic"));
+        assertThat(found, not(empty()));
+        assertThat(found.get(0).name, equalTo("methodStatic"));
+
+        var names = found.stream().map(result -> result.name).collect(Collectors.toList());
+        assertThat(names.indexOf("methodStatic"), lessThan(names.indexOf("methodStaticPrivate")));
+    }
+
     @Test
     public void symbolsInFile() {
         var path = "/org/javacs/example/AutocompleteMemberFixed.java";
@@ -96,4 +108,31 @@ public class SearchTest {
 
         assertThat("includes explicit constructor", all, hasItem("ReferenceConstructor"));
     }
+
+    @Test
+    public void editDuringSnapshotIsNotLost() {
+        var uri = FindResource.uri("/org/javacs/example/Goto.java");
+        var document = new TextDocumentItem();
+        document.uri = uri;
+        document.text = FileStore.contents(uri);
+        FileStore.open(new DidOpenTextDocumentParams(document));
+        try {
+            // A search takes a snapshot, then the file is edited before the search refreshes the index
+            var snapshot = FileStore.snapshot();
+            var change = new DidChangeTextDocumentParams();
+            change.textDocument.uri = uri;
+            change.textDocument.version = 1;
+            var evt = new TextDocumentContentChangeEvent();
+            evt.text = "package org.javacs.example; class SearchTestSnapshotEdit { }";
+            change.contentChanges.add(evt);
+            FileStore.change(change);
+            FileStore.withSnapshot(snapshot, () -> SymbolIndex.search("Goto", 10));
+            // The index must not have recorded the snapshot as the latest version of the file
+            assertThat(searchWorkspace("SearchTestSnapshotEdit", 10), hasItem("SearchTestSnapshotEdit"));
+        } finally {
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument.uri = uri;
+            FileStore.close(close);
+        }
+    }
 }
@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.stream.Collectors;
 import org.javacs.lsp.DidChangeTextDocumentParams;
 import org.javacs.lsp.DidCloseTextDocumentParams;
@@ -64,6 +66,21 @@ public class StringSearchTest {
         testNextWord("aa", "aa a", 0);
     }
 
+    @Test
+    public void testNextLongText() {
+        // Long enough that a SIMD search crosses several vectors, and has to check the last few bytes one at a time
+        var text = new StringBuilder();
+        for (var i = 0; i < 300; i++) {
+            text.append((char) ('a' + i % 7));
+        }
+        for (var at : new int[] {0, 1, 31, 32, 63, 64, 65, 200, 296}) {
+            var withMatch = new StringBuilder(text).replace(at, at + 4, "XyzX").toString();
+            testNext("XyzX", withMatch, at);
+            testNext("XyzX", withMatch.replace("yz", "yy"), -1);
+        }
+        testNext("gab", text.toString(), 6);
+    }
+
     @Test
     public void testMatchesTitleCase() {
         assertTrue(StringSearch.matchesTitleCase("FooBar", "fb"));
@@ -81,6 +98,23 @@ public class StringSearchTest {
         assertFalse(StringSearch.matchesTitleCase("Foo Bar", "fb"));
     }
 
+    @Test
+    public void testMatchScore() {
+        var candidates =
+                List.of("FooBar", "fooBar", "FooBarBaz", "MyFooBar", "AFooBar", "FirstBar", "fb", "Foobar", "Unrelated");
+        var ranked =
+                candidates.stream()
+                        .filter(c -> StringSearch.matchScore(c, "fooBar") >= 0)
+                        .sorted(Comparator.comparingInt(c -> -StringSearch.matchScore(c, "fooBar")))
+                        .collect(Collectors.toList());
+        assertThat(ranked, contains("fooBar", "FooBar", "Foobar", "FooBarBaz", "AFooBar", "MyFooBar"));
+
+        assertThat(StringSearch.matchScore("FirstBar", "fb"), greaterThanOrEqualTo(0));
+        assertThat(StringSearch.matchScore("Foobar", "fb"), lessThan(0));
+        assertThat(StringSearch.matchScore("fbx", "fb"), greaterThan(StringSearch.matchScore("FirstBar", "fb")));
+        assertThat(StringSearch.matchScore("Anything", ""), equalTo(0));
+    }
+
     @Test
     public void searchLargeFile() {
         var largeFile = Paths.get(FindResource.uri("/org/javacs/example/LargeFile.java"));
@@ -136,14 +170,35 @@ public class StringSearchTest {
         assertTrue(StringSearch.containsWordMatching(file, "ABetweenLines"));
     }
 
+    @Test
+    public void searchFileLargerThanBuffer() throws IOException {
+        var file = Files.createTempFile("large", ".java");
+        try {
+            var text = new StringBuilder();
+            while (text.length() < 3 * 1024 * 1024) {
+                text.append("    int padding;\n");
+            }
+            text.append("    int endOfFile;\n");
+            Files.writeString(file, text);
+            assertTrue(StringSearch.containsWord(file, "endOfFile"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
     @Test
     public void findExistingImports() {
         var rel = Paths.get("src", "org", "javacs", "doimport");
         var dir = LanguageServerFixture.DEFAULT_WORKSPACE_ROOT.resolve(rel);
         FileStore.setWorkspaceRoots(Collections.singleton(dir));
-        var existing = StringSearch.existingImports(FileStore.all());
-        assertThat(existing.classes, hasItems("java.util.List"));
-        assertThat(existing.packages, hasItems("java.util", "java.io"));
+        try {
+            var existing = StringSearch.existingImports(FileStore.all());
+            assertThat(existing.classes, hasItems("java.util.List"));
+            assertThat(existing.packages, hasItems("java.util", "java.io"));
+        } finally {
+            // Other tests share FileStore, and expect the default workspace
+            FileStore.setWorkspaceRoots(Collections.singleton(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+        }
     }
 
     @Test
@@ -0,0 +1,89 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Set;
+import org.javacs.lsp.DidChangeTextDocumentParams;
+import org.javacs.lsp.DidCloseTextDocumentParams;
+import org.javacs.lsp.DidOpenTextDocumentParams;
+import org.javacs.lsp.TextDocumentContentChangeEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WordIndexTest {
+
+    @Before
+    public void setWorkspaceRoot() {
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    @Test
+    public void findWord() {
+        var largeFile = FindResource.path("/org/javacs/example/LargeFile.java");
+        assertThat(WordIndex.filesContaining("removeMethodBodies"), hasItem(largeFile));
+        assertThat(WordIndex.filesContaining("removeMethodBodiez"), empty());
+    }
+
+    @Test
+    public void findImport() {
+        var largeFile = FindResource.path("/org/javacs/example/LargeFile.java");
+        assertTrue(WordIndex.containsImport(largeFile, "java.util.logging", "Logger"));
+        assertFalse(WordIndex.containsImport(largeFile, "java.util.concurrent", "Executor"));
+    }
+
+    @Test
+    public void findWordInOpenFile() {
+        // Open file
+        var smallFile = FindResource.path("/org/javacs/example/Goto.java");
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.text = FileStore.contents(smallFile);
+        open.textDocument.uri = smallFile.toUri();
+        FileStore.open(open);
+        // Edit file
+        var change = new DidChangeTextDocumentParams();
+        change.textDocument.uri = smallFile.toUri();
+        change.textDocument.version = 1;
+        var evt = new TextDocumentContentChangeEvent();
+        evt.text = "package org.javacs.example; class WordIndexTestEdit { }";
+        change.contentChanges.add(evt);
+        FileStore.change(change);
+        // Check that the index sees the edits
+        try {
+            assertThat(WordIndex.filesContaining("WordIndexTestEdit"), hasItem(smallFile));
+        } finally {
+            // Close file
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument.uri = smallFile.toUri();
+            FileStore.close(close);
+        }
+        assertThat(WordIndex.filesContaining("WordIndexTestEdit"), not(hasItem(smallFile)));
+    }
+
+    @Test
+    public void editDuringSnapshotIsNotLost() {
+        var smallFile = FindResource.path("/org/javacs/example/Goto.java");
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.text = FileStore.contents(smallFile);
+        open.textDocument.uri = smallFile.toUri();
+        FileStore.open(open);
+        try {
+            // A request takes a snapshot, then the file is edited before the request queries the index
+            var snapshot = FileStore.snapshot();
+            var change = new DidChangeTextDocumentParams();
+            change.textDocument.uri = smallFile.toUri();
+            change.textDocument.version = 1;
+            var evt = new TextDocumentContentChangeEvent();
+            evt.text = "package org.javacs.example; class WordIndexTestSnapshotEdit { }";
+            change.contentChanges.add(evt);
+            FileStore.change(change);
+            FileStore.withSnapshot(snapshot, () -> WordIndex.filesContaining("Goto"));
+            // The index must not have recorded the snapshot as the latest version of the file
+            assertThat(WordIndex.filesContaining("WordIndexTestSnapshotEdit"), hasItem(smallFile));
+        } finally {
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument.uri = smallFile.toUri();
+            FileStore.close(close);
+        }
+    }
+}
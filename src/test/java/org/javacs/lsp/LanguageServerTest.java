@@ -6,6 +6,9 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -20,7 +23,9 @@ public class LanguageServerTest {
     PipedOutputStream writeClientToServer, writeServerToClient;
     LanguageServer mockServer;
     Thread main;
-    CompletableFuture<Void> receivedInitialize = new CompletableFuture<>();
+    CompletableFuture<Void> receivedInitialize = new CompletableFuture<>(),
+            receivedHover = new CompletableFuture<>(),
+            finishReferences = new CompletableFuture<>();
 
     class TestLanguageServer extends LanguageServer {
         @Override
@@ -28,6 +33,22 @@ public class LanguageServerTest {
             receivedInitialize.complete(null);
             return new InitializeResult();
         }
+
+        @Override
+        public Optional<List<Location>> findReferences(ReferenceParams params) {
+            // Wait until the test finishes the request, or the client cancels it
+            while (!finishReferences.isDone()) {
+                CancelToken.check();
+                Thread.onSpinWait();
+            }
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<Hover> hover(TextDocumentPositionParams params) {
+            receivedHover.complete(null);
+            return Optional.empty();
+        }
     }
 
     static {
@@ -85,4 +106,70 @@ public class LanguageServerTest {
         main.join(10_000);
         assertThat("Main thread has quit", main.isAlive(), equalTo(false));
     }
+
+    @Test
+    public void slowRequestDoesNotBlockOtherRequests()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        // Send initialize message and wait for ack
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        // Start a references request that won't finish until we say so
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/references\",\"params\":{}}");
+        // Hover should still be processed
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"textDocument/hover\",\"params\":{}}");
+        try {
+            receivedHover.get(10, TimeUnit.SECONDS);
+        } finally {
+            finishReferences.complete(null);
+        }
+        // Send exit message and wait for exit
+        sendToServer(exitMessage);
+        main.join(10_000);
+        assertThat("Main thread has quit", main.isAlive(), equalTo(false));
+    }
+
+    @Test
+    public void cancelRunningRequest()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        // Send initialize message and wait for response
+        sendToServer(initializeMessage);
+        receiveFromServer();
+        // Start a references request that won't finish until it's cancelled
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/references\",\"params\":{}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":2}}");
+        // Server should respond with RequestCancelled
+        var response = receiveFromServer();
+        assertThat(response, containsString("\"id\":2"));
+        assertThat(response, containsString("\"code\":" + ErrorCodes.RequestCancelled));
+    }
+
+    @Test
+    public void cancelRequestAsItStarts()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        // Send initialize message and wait for response
+        sendToServer(initializeMessage);
+        receiveFromServer();
+        // Cancel each request right after sending it, so some cancellations arrive while it is being started
+        var requests = 100;
+        for (var id = 2; id < 2 + requests; id++) {
+            sendToServer("{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"textDocument/references\",\"params\":{}}");
+            sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":" + id + "}}");
+        }
+        // Every request should be cancelled, none should be left running
+        var responses =
+                CompletableFuture.supplyAsync(
+                                () -> {
+                                    var list = new ArrayList<String>();
+                                    for (var i = 0; i < requests; i++) {
+                                        list.add(LSP.nextToken(serverToClient));
+                                    }
+                                    return list;
+                                })
+                        .get(10, TimeUnit.SECONDS);
+        assertThat(responses, everyItem(containsString("\"code\":" + ErrorCodes.RequestCancelled)));
+    }
+
+    private String receiveFromServer() throws InterruptedException, ExecutionException, TimeoutException {
+        return CompletableFuture.supplyAsync(() -> LSP.nextToken(serverToClient)).get(10, TimeUnit.SECONDS);
+    }
 }
@@ -9,6 +9,8 @@ import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.nio.charset.Charset;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -78,6 +80,98 @@ public class LspTest {
         assertThat(parse.params, equalTo(new JsonObject()));
     }
 
+    @Test
+    public void readMultibyteMessages() throws IOException {
+        var first = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"hover\",\"params\":\"🔥\"}";
+        var second = "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"hover\",\"params\":\"é\"}";
+        var channel = new MessageChannel(buffer, writer);
+        channel.write(first);
+        channel.write(second);
+
+        assertThat(channel.read().params.getAsString(), equalTo("🔥"));
+        assertThat(channel.read().params.getAsString(), equalTo("é"));
+    }
+
+    @Test
+    public void skipMalformedMessages() throws IOException {
+        var channel = new MessageChannel(buffer, writer);
+        channel.write("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":");
+        channel.write("");
+        channel.write("not json");
+        channel.write("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"hover\",\"params\":{}}");
+
+        var message = channel.read();
+        assertThat(message.id, equalTo(2));
+        assertThat(message.method, equalTo("hover"));
+    }
+
+    @Test
+    public void replaceQueuedNotifications() throws IOException {
+        var release = new CountDownLatch(1);
+        var slow =
+                new MessageChannel(buffer, writer) {
+                    @Override
+                    void write(String messageText) throws IOException {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        super.write(messageText);
+                    }
+                };
+        var send = new MessageWriter(slow);
+        send.send("1");
+        send.sendLatest("a", () -> "2");
+        send.sendLatest("b", () -> "3");
+        send.sendLatest("a", () -> "4");
+        assertThat(send.depth(), lessThanOrEqualTo(3));
+        release.countDown();
+        send.close();
+
+        assertThat(LSP.nextToken(buffer), equalTo("1"));
+        assertThat(LSP.nextToken(buffer), equalTo("4"));
+        assertThat(LSP.nextToken(buffer), equalTo("3"));
+    }
+
+    private Message message(Integer id, String method, String uri) {
+        var params = String.format("{\"textDocument\":{\"uri\":\"%s\"}}", uri);
+        var text = String.format("{\"jsonrpc\":\"2.0\",\"method\":\"%s\",\"params\":%s}", method, params);
+        var message = LSP.parseMessage(text);
+        message.id = id;
+        return message;
+    }
+
+    @Test
+    public void newerCompletionReplacesQueuedCompletion() throws InterruptedException {
+        var queue = new MessageQueue();
+        assertThat(queue.put(message(1, "textDocument/completion", "file:///A.java")), empty());
+        assertThat(queue.put(message(2, "textDocument/completion", "file:///B.java")), empty());
+        assertThat(queue.put(message(3, "textDocument/hover", "file:///A.java")), empty());
+        var replaced = queue.put(message(4, "textDocument/completion", "file:///A.java"));
+        assertThat(replaced, hasSize(1));
+        assertThat(replaced.get(0).id, equalTo(1));
+
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).id, equalTo(2));
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).id, equalTo(3));
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).id, equalTo(4));
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS), nullValue());
+    }
+
+    @Test
+    public void documentSyncJumpsAheadOfOtherDocuments() throws InterruptedException {
+        var queue = new MessageQueue();
+        queue.put(message(1, "textDocument/definition", "file:///A.java"));
+        queue.put(message(2, "textDocument/definition", "file:///B.java"));
+        queue.put(message(3, "textDocument/references", "file:///C.java"));
+        queue.put(message(null, "textDocument/didChange", "file:///B.java"));
+
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).id, equalTo(1));
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).id, equalTo(2));
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).method, equalTo("textDocument/didChange"));
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).id, equalTo(3));
+    }
+
     @Test
     public void excludeDefaults() {
         var item = new CompletionItem();
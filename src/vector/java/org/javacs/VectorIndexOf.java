@@ -0,0 +1,52 @@
+package org.javacs;
+
+import java.nio.ByteBuffer;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorIndexOf finds a pattern in a text using SIMD instructions, by comparing the first and last bytes of the
+ * pattern against a whole vector of positions in the text at once, and only checking the rest of the pattern at
+ * positions where both match: http://0x80.pl/articles/simd-strfind.html
+ *
+ * <p>This file is only compiled by the `vector` profile, and StringSearch only loads it if the JVM was started with
+ * `--add-modules jdk.incubator.vector`.
+ */
+class VectorIndexOf implements StringSearch.IndexOf {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    @Override
+    public int indexOf(byte[] text, int from, int until, byte[] pattern) {
+        var last = pattern.length - 1;
+        var first = ByteVector.broadcast(SPECIES, pattern[0]);
+        var end = ByteVector.broadcast(SPECIES, pattern[last]);
+        var i = from;
+        // Stop when the vector that is compared with the last byte of the pattern would run past `until`
+        var bound = until - last - SPECIES.length();
+        for (; i <= bound; i += SPECIES.length()) {
+            var startsWith = ByteVector.fromArray(SPECIES, text, i).eq(first);
+            var endsWith = ByteVector.fromArray(SPECIES, text, i + last).eq(end);
+            var mask = startsWith.and(endsWith);
+            if (!mask.anyTrue()) continue;
+            var candidates = mask.toLong();
+            while (candidates != 0) {
+                var lane = Long.numberOfTrailingZeros(candidates);
+                if (matches(text, i + lane, pattern)) return i + lane;
+                candidates &= candidates - 1;
+            }
+        }
+        // Check the last few positions one at a time
+        for (; i + last < until; i++) {
+            if (matches(text, i, pattern)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] text, int offset, byte[] pattern) {
+        // The first and last bytes have already been compared
+        for (var j = 1; j < pattern.length - 1; j++) {
+            if (text[offset + j] != pattern[j]) return false;
+        }
+        return text[offset] == pattern[0] && text[offset + pattern.length - 1] == pattern[pattern.length - 1];
+    }
+}